@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Map;
 
 import org.gmcalc3.world.Character;
+import org.gmcalc3.world.StatMap;
 
 import android.content.Context;
 import android.view.LayoutInflater;
@@ -25,6 +26,9 @@ public final class CharacterStatAdapter extends BaseExpandableListAdapter {
 	private String[] groupStrings;
 	private String[][] childStrings;
 	private LayoutInflater inflater;
+	private StatMap builtStatMap;						// The stat map the contents were built from.
+	private Map<String, String[]> builtCategories;		// The stat categories the contents were built from.
+	private long builtVersion;							// The version of the stat map when the contents were built.
 	
 	/**
 	 * Construct an adapter.
@@ -123,8 +127,17 @@ public final class CharacterStatAdapter extends BaseExpandableListAdapter {
 	}
 	
 	private void buildContents() {
+		// Only rebuild the contents if the stats or categories have changed since they were last built.
 		Map<String, String[]> statCategories = character.getWorld().getCharacterStatCategories();
-		String[] statStrings = character.getStatMap().toDisplayStrings();
+		StatMap statMap = character.getStatMap();
+		long version = statMap.getVersion();
+		if (statMap == builtStatMap && statCategories == builtCategories && version == builtVersion)
+			return;
+		builtStatMap = statMap;
+		builtCategories = statCategories;
+		builtVersion = version;
+		
+		String[] statStrings = statMap.toDisplayStrings();
 		int numStatStrings = statStrings.length;
 		
 		ArrayList<String> groupNames = new ArrayList<String>();
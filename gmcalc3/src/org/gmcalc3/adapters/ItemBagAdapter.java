@@ -21,6 +21,8 @@ public final class ItemBagAdapter extends BaseExpandableListAdapter {
 	
 	private ListBag<Item> bag;
 	private String[][] childContents;
+	private Item[] childItems;			// The item each group's children were built from.
+	private long[] childVersions;		// The version of each item's stat map when its children were built.
 	private LayoutInflater inflater;
 	
 	/**
@@ -126,11 +128,24 @@ public final class ItemBagAdapter extends BaseExpandableListAdapter {
 	}
 	
 	private void buildChildContents() {
-		childContents = new String[bag.size()][];
-		int length = childContents.length;
+		// Keep the children of the items that are in the same place and haven't changed.
+		int length = bag.size();
+		String[][] newContents = new String[length][];
+		Item[] newItems = new Item[length];
+		long[] newVersions = new long[length];
 		for (int i = 0; i < length; i++) {
-			childContents[i] = bag.get(i).getStatMap().toDisplayStrings();
+			Item item = bag.get(i);
+			long version = item.getStatMap().getVersion();
+			if (childItems != null && i < childItems.length && childItems[i] == item && childVersions[i] == version)
+				newContents[i] = childContents[i];
+			else
+				newContents[i] = item.getStatMap().toDisplayStrings();
+			newItems[i] = item;
+			newVersions[i] = version;
 		}
+		childContents = newContents;
+		childItems = newItems;
+		childVersions = newVersions;
 	}
 	
 }
\ No newline at end of file
@@ -2,6 +2,8 @@
 
 package org.gmcalc3.world;
 
+import java.util.Collection;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -34,7 +36,7 @@ public class Character implements Parcelable {
 		this.filePath = filePath;
 		this.world = world;
 		name = DEFAULT_NAME;
-		statMap = new StatMap();
+		statMap = new StatMap(StatSchema.of(world));
 		equipped = new ListBag<Item>();
 		inventory = new ListBag<Item>();
 	}
@@ -98,17 +100,76 @@ public class Character implements Parcelable {
 			statMap.mergeMap(baseStats);
 
 		// Merge the equipped item stats into the stats.
-		for (int q, i = 0; i < equipped.size(); i++) {
-			Item item = equipped.get(i);
-			int amount = equipped.getCount(i);
-			for (q = 0; q < amount; q++) {
-				statMap.mergeMap(item.getStatMap());
-			}
+		for (int i = 0; i < equipped.size(); i++) {
+			statMap.mergeMap(equipped.get(i).getStatMap(), equipped.getCount(i));
 		}
 
 		// Evaluate the expressions in the stats.
 		statMap.evaluateExpressions();
 	}
+	
+	// Recalculate only the stats with the given keys, then re-evaluate the expressions that depend on them.
+	// Each key is rebuilt from the base stats and the equipped items in the same order as recalculateStats().
+	private void recalculateStats(Collection<String> keys) {
+		StatMap baseStats = world.getCharacterBaseStats();
+		for (String key : keys) {
+			Stat stat = null;
+			if (baseStats != null) {
+				Stat baseStat = baseStats.get(key);
+				if (baseStat != null)
+					stat = baseStat.copy();
+			}
+			
+			for (int i = 0; i < equipped.size(); i++) {
+				Stat itemStat = equipped.get(i).getStatMap().get(key);
+				if (itemStat == null)
+					continue;
+				int amount = equipped.getCount(i);
+				if (amount < 1)
+					continue;
+				if (stat == null)
+					stat = itemStat.copy(amount);
+				else
+					stat.merge(itemStat, amount);
+			}
+			
+			if (stat == null)
+				statMap.remove(key);
+			else
+				statMap.put(key, stat);
+		}
+		
+		// Evaluate the expressions that could have changed.
+		statMap.evaluateExpressions(keys);
+	}
+	
+	// Equip some of an item and update the stats it affects.
+	public void equip(Item item, int amount) {
+		if (amount < 1)
+			return;
+		equipped.add(item, amount);
+		recalculateStats(item.getStatMap().keySet());
+	}
+	
+	// Unequip some of an item and update the stats it affects.
+	public void unequip(Item item, int amount) {
+		if (equipped.remove(item, amount))
+			recalculateStats(item.getStatMap().keySet());
+	}
+	
+	// Set how many of an item are equipped and update the stats it affects.
+	public void setEquippedCount(Item item, int count) {
+		if (count < 1) {
+			unequip(item, equipped.getCount(item));
+		}
+		else if (equipped.contains(item)) {
+			equipped.setCount(item, count);
+			recalculateStats(item.getStatMap().keySet());
+		}
+		else {
+			equip(item, count);
+		}
+	}
 
 	// Turn an array of objects into an item and add it to the given bag.
 	public void makeItemFromData(JSONObject data, ListBag<Item> bag) throws JSONException {
@@ -153,7 +214,7 @@ public class Character implements Parcelable {
 		}
 
 		// Add the item to the bag.
-		Item item = new Item(world, prefixes, materials, itemBase);
+		Item item = world.getItem(itemBase, prefixes, materials);
 		bag.add(item, quantity);
 	}
 
@@ -2,6 +2,7 @@
 
 package org.gmcalc3.world;
 
+import java.util.Arrays;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -26,6 +27,8 @@ public class Component implements Parcelable {
 	private StatMap statMap;
 	private int rarity;
 	private Set<String> tags;
+	private long[] tagBits;			// Bit id is set if this has the tag with that id in tagBitsIds.
+	private Interner tagBitsIds;
 	
 	// Constructors.
 	public Component(String filePath, World world, String name, StatMap statMap, int rarity, TreeSet<String> tags) {
@@ -38,7 +41,7 @@ public class Component implements Parcelable {
 	}
 	
 	public Component(String filePath, World world) {
-		this(filePath, world, "Untitled Item", new StatMap(), 0, new TreeSet<String>());
+		this(filePath, world, "Untitled Item", new StatMap(StatSchema.of(world)), 0, new TreeSet<String>());
 	}
 	
 	public Component(String filePath, World world, JSONObject values, ExpressionBuilder expBuilder) throws JSONException {
@@ -49,7 +52,7 @@ public class Component implements Parcelable {
 		
 		// Get the stats.
 		JSONObject rawStatMap = values.getJSONObject(STATMAP_KEY); 
-		statMap = new StatMap(rawStatMap, expBuilder);
+		statMap = new StatMap(StatSchema.of(world), rawStatMap, expBuilder);
 		
 		// Get the rarity.
 		rarity = values.getInt(RARITY_KEY);
@@ -86,6 +89,33 @@ public class Component implements Parcelable {
 		return tags;
 	}
 	
+	// Get the ids of the tags of this in a schema as a bitset.
+	synchronized long[] getTagBits(Interner tagIds) {
+		if (tagBitsIds != tagIds) {
+			long[] bits = new long[0];
+			for (String tag : tags) {
+				int id = tagIds.intern(tag);
+				if ((id >>> 6) >= bits.length)
+					bits = Arrays.copyOf(bits, (id >>> 6) + 1);
+				bits[id >>> 6] |= 1L << id;
+			}
+			tagBits = bits;
+			tagBitsIds = tagIds;
+		}
+		return tagBits;
+	}
+	
+	// Check if this has every tag in a bitset of tag ids from a schema.
+	boolean hasTagBits(Interner tagIds, long[] required) {
+		long[] bits = getTagBits(tagIds);
+		for (int word = 0; word < required.length; word++) {
+			long have = (word < bits.length)? bits[word] : 0;
+			if ((required[word] & ~have) != 0)
+				return false;
+		}
+		return true;
+	}
+	
 	// Check if this meets some tag requirements.
 	public boolean hasTags(String[] check) {
 		int numChecks = check.length;
@@ -0,0 +1,370 @@
+//Represents the exact probability distribution of a sum of dice, eg. the sum of [1, 6] and [1, 6] is 2d6 and has a bell curve
+//from 2 to 12. Each die is a uniform range of integers. Distributions are immutable, and adding them only records which dice
+//are summed; the probabilities are found by convolution the first time they are needed, and the probabilities of sums that
+//come up often are remembered.
+
+package org.gmcalc3.world;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public final class Distribution {
+
+	// The number of probability tables to remember.
+	private static final int CACHE_CAPACITY = 256;
+
+	// Convolutions where one side has at most this many values are done directly instead of with an FFT.
+	private static final int DIRECT_CONVOLUTION_LIMIT = 64;
+
+	// The remembered probability tables, keyed by the dice they are for. The least recently used table is dropped first.
+	private static final LinkedHashMap<String, double[]> cache = new LinkedHashMap<String, double[]>(CACHE_CAPACITY, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest) {
+			return size() > CACHE_CAPACITY;
+		}
+	};
+
+	private final int[] dice;						// Triples of (min, max, count), sorted by min and then max.
+	private final int min, max;						// The smallest and largest possible sums.
+	private volatile double[] probabilities;		// The probability of each sum from min to max. Found when first needed.
+	private volatile double[] cumulative;			// The probability of each sum or less. Found when first needed.
+
+	// Constructor.
+	private Distribution(int[] dice) {
+		this.dice = dice;
+		int min = 0, max = 0;
+		for (int i = 0; i < dice.length; i += 3) {
+			min += dice[i] * dice[i + 2];
+			max += dice[i + 1] * dice[i + 2];
+		}
+		this.min = min;
+		this.max = max;
+	}
+
+	// Make the distribution of a single die that can roll any integer from min to max with equal probability.
+	public static Distribution uniform(int min, int max) {
+		if (min > max) {
+			int temp = min;
+			min = max;
+			max = temp;
+		}
+		return new Distribution(new int[] { min, max, 1 });
+	}
+
+	// Make the distribution of the sum of count dice with the given number of sides, eg. dice(3, 6) is 3d6.
+	public static Distribution dice(int count, int sides) {
+		if (count < 1 || sides < 1)
+			throw new IllegalArgumentException("A roll needs at least one die with at least one side.");
+		return new Distribution(new int[] { 1, sides, count });
+	}
+
+	// Make the distribution of the first length values of an array of (min, max, count) triples, which must be
+	// sorted by min and then max with min <= max.
+	static Distribution fromDice(int[] dice, int length) {
+		return new Distribution(Arrays.copyOf(dice, length));
+	}
+
+	// Make the distribution of a range.
+	public static Distribution fromRange(Range range) {
+		return uniform(range.getMin(), range.getMax());
+	}
+
+	// Get the distribution of the sum of this and another distribution.
+	public Distribution add(Distribution other) {
+		// Merge the sorted dice, adding the counts of dice that are the same.
+		int[] out = new int[dice.length + other.dice.length];
+		int n = 0, i = 0, q = 0;
+		while (i < dice.length || q < other.dice.length) {
+			int order;
+			if (i == dice.length)
+				order = 1;
+			else if (q == other.dice.length)
+				order = -1;
+			else if (dice[i] != other.dice[q])
+				order = (dice[i] < other.dice[q])? -1 : 1;
+			else if (dice[i + 1] != other.dice[q + 1])
+				order = (dice[i + 1] < other.dice[q + 1])? -1 : 1;
+			else
+				order = 0;
+
+			if (order < 0) {
+				System.arraycopy(dice, i, out, n, 3);
+				i += 3;
+			}
+			else if (order > 0) {
+				System.arraycopy(other.dice, q, out, n, 3);
+				q += 3;
+			}
+			else {
+				out[n] = dice[i];
+				out[n + 1] = dice[i + 1];
+				out[n + 2] = dice[i + 2] + other.dice[q + 2];
+				i += 3;
+				q += 3;
+			}
+			n += 3;
+		}
+		return new Distribution((n == out.length)? out : Arrays.copyOf(out, n));
+	}
+
+	// Get the distribution of the sum of count independent rolls of this.
+	public Distribution times(int count) {
+		if (count == 1)
+			return this;
+		if (count < 1)
+			throw new IllegalArgumentException("A distribution can only be rolled a positive number of times.");
+		int[] out = Arrays.copyOf(dice, dice.length);
+		for (int i = 2; i < out.length; i += 3)
+			out[i] *= count;
+		return new Distribution(out);
+	}
+
+	// Get the smallest possible sum.
+	public int getMin() {
+		return min;
+	}
+
+	// Get the largest possible sum.
+	public int getMax() {
+		return max;
+	}
+
+	// Get the probability of rolling exactly a value.
+	public double getProbability(int value) {
+		if (value < min || value > max)
+			return 0;
+		return getProbabilities()[value - min];
+	}
+
+	// Get the probability of rolling a value or less.
+	public double getCumulativeProbability(int value) {
+		if (value < min)
+			return 0;
+		if (value >= max)
+			return 1;
+		return getCumulative()[value - min];
+	}
+
+	// Get the expected value. Each die contributes the middle of its range, so this doesn't need the probabilities.
+	public double getMean() {
+		double mean = 0;
+		for (int i = 0; i < dice.length; i += 3)
+			mean += (dice[i] + (double)dice[i + 1]) / 2 * dice[i + 2];
+		return mean;
+	}
+
+	// Get the variance. The variance of a sum of independent dice is the sum of their variances.
+	public double getVariance() {
+		double variance = 0;
+		for (int i = 0; i < dice.length; i += 3) {
+			double sides = dice[i + 1] - (double)dice[i] + 1;
+			variance += (sides * sides - 1) / 12 * dice[i + 2];
+		}
+		return variance;
+	}
+
+	// Get the smallest value that is rolled at least the given fraction of the time, eg. 0.5 is the median.
+	public int getPercentile(double fraction) {
+		double[] cumulative = getCumulative();
+		for (int i = 0; i < cumulative.length; i++) {
+			if (cumulative[i] >= fraction)
+				return min + i;
+		}
+		return max;
+	}
+
+	// Get the probability of each sum from getMin() to getMax(). The array must not be changed.
+	public double[] getProbabilities() {
+		double[] out = probabilities;
+		if (out == null) {
+			out = probabilitiesOf(dice, 0, dice.length / 3);
+			probabilities = out;
+		}
+		return out;
+	}
+
+	// Get the probability of each sum or less.
+	private double[] getCumulative() {
+		double[] out = cumulative;
+		if (out == null) {
+			double[] p = getProbabilities();
+			out = new double[p.length];
+			double sum = 0;
+			for (int i = 0; i < p.length; i++) {
+				sum += p[i];
+				out[i] = sum;
+			}
+			cumulative = out;
+		}
+		return out;
+	}
+
+	// Make the key that the probabilities of the dice from first to last (exclusive) are remembered under.
+	private static String keyOf(int[] dice, int first, int last) {
+		StringBuilder key = new StringBuilder();
+		for (int i = first * 3; i < last * 3; i += 3) {
+			key.append(dice[i + 2]);
+			key.append('x');
+			key.append(dice[i]);
+			key.append("..");
+			key.append(dice[i + 1]);
+			key.append(' ');
+		}
+		return key.toString();
+	}
+
+	// Get the probabilities of the sum of the dice from first to last (exclusive), remembering them for later.
+	// The dice are split in half so that the halves are remembered too, eg. 2d10 + 1d4 reuses 2d10.
+	private static double[] probabilitiesOf(int[] dice, int first, int last) {
+		String key = keyOf(dice, first, last);
+		double[] out;
+		synchronized (cache) {
+			out = cache.get(key);
+		}
+		if (out != null)
+			return out;
+
+		if (last - first == 1) {
+			// A number of the same die. Square the distribution of one die to get the distribution of several.
+			int i = first * 3;
+			double[] die = new double[dice[i + 1] - dice[i] + 1];
+			Arrays.fill(die, 1.0 / die.length);
+			out = null;
+			double[] power = die;
+			for (int count = dice[i + 2]; count > 0; count >>= 1) {
+				if ((count & 1) != 0)
+					out = (out == null)? power : convolve(out, power);
+				if (count > 1)
+					power = convolve(power, power);
+			}
+		}
+		else {
+			int middle = (first + last) >>> 1;
+			out = convolve(probabilitiesOf(dice, first, middle), probabilitiesOf(dice, middle, last));
+		}
+
+		synchronized (cache) {
+			cache.put(key, out);
+		}
+		return out;
+	}
+
+	// Find the probabilities of the sum of two independent distributions.
+	private static double[] convolve(double[] a, double[] b) {
+		if (Math.min(a.length, b.length) <= DIRECT_CONVOLUTION_LIMIT)
+			return convolveDirect(a, b);
+		return convolveFFT(a, b);
+	}
+
+	private static double[] convolveDirect(double[] a, double[] b) {
+		double[] out = new double[a.length + b.length - 1];
+		for (int i = 0; i < a.length; i++) {
+			double ai = a[i];
+			for (int q = 0; q < b.length; q++)
+				out[i + q] += ai * b[q];
+		}
+		return out;
+	}
+
+	private static double[] convolveFFT(double[] a, double[] b) {
+		int length = a.length + b.length - 1;
+		int size = Integer.highestOneBit(length);
+		if (size < length)
+			size <<= 1;
+
+		double[] re1 = Arrays.copyOf(a, size), im1 = new double[size];
+		double[] re2 = Arrays.copyOf(b, size), im2 = new double[size];
+		fft(re1, im1, false);
+		fft(re2, im2, false);
+		for (int i = 0; i < size; i++) {
+			double re = re1[i] * re2[i] - im1[i] * im2[i];
+			double im = re1[i] * im2[i] + im1[i] * re2[i];
+			re1[i] = re;
+			im1[i] = im;
+		}
+		fft(re1, im1, true);
+
+		// Rounding can leave tiny negative probabilities, so clamp them and make the probabilities add up to 1 again.
+		double[] out = new double[length];
+		double total = 0;
+		for (int i = 0; i < length; i++) {
+			double p = re1[i] / size;
+			out[i] = (p > 0)? p : 0;
+			total += out[i];
+		}
+		for (int i = 0; i < length; i++)
+			out[i] /= total;
+		return out;
+	}
+
+	// An in-place iterative radix-2 fast Fourier transform. The length must be a power of two.
+	private static void fft(double[] re, double[] im, boolean inverse) {
+		int n = re.length;
+
+		// Put the values in bit-reversed order.
+		for (int i = 1, j = 0; i < n; i++) {
+			int bit = n >> 1;
+			for (; (j & bit) != 0; bit >>= 1)
+				j ^= bit;
+			j ^= bit;
+			if (i < j) {
+				double temp = re[i];
+				re[i] = re[j];
+				re[j] = temp;
+				temp = im[i];
+				im[i] = im[j];
+				im[j] = temp;
+			}
+		}
+
+		// Combine the transforms of the halves.
+		for (int length = 2; length <= n; length <<= 1) {
+			double angle = 2 * Math.PI / length * (inverse? 1 : -1);
+			double stepRe = Math.cos(angle), stepIm = Math.sin(angle);
+			for (int i = 0; i < n; i += length) {
+				double wRe = 1, wIm = 0;
+				for (int q = 0; q < length / 2; q++) {
+					int u = i + q, v = i + q + length / 2;
+					double vRe = re[v] * wRe - im[v] * wIm;
+					double vIm = re[v] * wIm + im[v] * wRe;
+					re[v] = re[u] - vRe;
+					im[v] = im[u] - vIm;
+					re[u] += vRe;
+					im[u] += vIm;
+					double nextRe = wRe * stepRe - wIm * stepIm;
+					wIm = wRe * stepIm + wIm * stepRe;
+					wRe = nextRe;
+				}
+			}
+		}
+	}
+
+	// Get the dice as a string, eg. 2d10 + 1d4. Dice that don't start at 1 are shown as their range.
+	public String toString() {
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < dice.length; i += 3) {
+			if (i > 0)
+				out.append(" + ");
+			if (dice[i] == 1) {
+				out.append(dice[i + 2]);
+				out.append('d');
+				out.append(dice[i + 1]);
+			}
+			else {
+				if (dice[i + 2] != 1) {
+					out.append(dice[i + 2]);
+					out.append('x');
+				}
+				out.append('[');
+				out.append(dice[i]);
+				out.append(", ");
+				out.append(dice[i + 1]);
+				out.append(']');
+			}
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,61 @@
+// Interns strings to dense int ids. Ids are given out in the order strings are first seen and never change, so
+// things keyed by the strings can be stored in arrays by id. Strings can be interned from several threads at once.
+// An interner never forgets a string, so it should belong to whatever owns the strings, eg. a world.
+
+package org.gmcalc3.world;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+final class Interner {
+
+	private final ConcurrentHashMap<String, Integer> ids;	// The id of each string.
+	private volatile String[] strings;						// The string of each id. Grows as strings are interned.
+	private int size;										// The number of strings. Guarded by this.
+
+	// Constructor.
+	Interner() {
+		ids = new ConcurrentHashMap<String, Integer>();
+		strings = new String[16];
+	}
+
+	// Get the id of a string, giving it one if it doesn't have one yet.
+	int intern(String s) {
+		Integer id = ids.get(s);
+		if (id != null)
+			return id;
+		synchronized (this) {
+			id = ids.get(s);
+			if (id != null)
+				return id;
+			if (size == strings.length)
+				strings = Arrays.copyOf(strings, size * 2);
+			strings[size] = s;
+			ids.put(s, size);
+			return size++;
+		}
+	}
+
+	// Get the id of a string, or -1 if it doesn't have one.
+	int getId(String s) {
+		Integer id = ids.get(s);
+		return (id != null)? id : -1;
+	}
+
+	// Get the string with an id.
+	String get(int id) {
+		return strings[id];
+	}
+
+	// Get the number of strings.
+	synchronized int size() {
+		return size;
+	}
+
+	// Get the id of each string. The map must not be changed.
+	Map<String, Integer> getIdMap() {
+		return ids;
+	}
+
+}
@@ -1,11 +1,17 @@
 package org.gmcalc3.world;
 
+import java.util.Arrays;
+
 /**
  * An item contains an ItemBase, an array of Components representing the materials
  * applied to the ItemBase, and an array of Components representing the prefixes
  * applied to the ItemBase. It also accumulates the stats of these into a StatMap
  * and accumulates their rarity and names.
  * 
+ * Items made by World.getItem() are shared between everything that holds the same
+ * composition, and can't be changed. Two shared items are equal if they are made from
+ * the same components. Other items are only equal to themselves.
+ * 
  * @author John Werner
  */
 
@@ -20,6 +26,7 @@ public class Item {
 	private StatMap statMap;		// The stats.
 	private String name;			// The name. Is a combination of the prefixes, materials, and item base names.
 	private int rarity;				// The rarity. This is the sum of the rarities of the prefixes, materials, and item base.
+	private final boolean shared;	// If true, this item is shared through the world's item cache and can't be changed.
 	
 	// Constructors.
 	public Item(World world, ItemBase itemBase) {
@@ -31,13 +38,18 @@ public class Item {
 	}
 	
 	public Item(World world, Component[] prefixes, Component[] materials, ItemBase itemBase) {
+		this(world, prefixes, materials, itemBase, false);
+	}
+	
+	Item(World world, Component[] prefixes, Component[] materials, ItemBase itemBase, boolean shared) {
 		this.world = world;
 		this.itemBase = itemBase;
+		this.shared = shared;
 		setPrefixesFilter(prefixes);
 		setMaterialsFilter(materials);
-		statMap = new StatMap();
-		recalculateStats();
-		recalculateName();
+		statMap = new StatMap(StatSchema.of(world));
+		calculateStats();
+		calculateName();
 	}
 	
 	// Accessors.
@@ -69,8 +81,30 @@ public class Item {
 		return rarity;
 	}
 	
+	public boolean isShared() {
+		return shared;
+	}
+	
+	// Make sure this item can be changed.
+	private void checkNotShared() {
+		if (shared)
+			throw new UnsupportedOperationException("A shared item can't be changed.");
+	}
+	
 	// Recalculate the stats and rarity of this item.
 	public void recalculateStats() {
+		checkNotShared();
+		calculateStats();
+	}
+	
+	// Recalculate the name.
+	public void recalculateName() {
+		checkNotShared();
+		calculateName();
+	}
+	
+	// Calculate the stats and rarity of this item.
+	private void calculateStats() {
 		statMap.clear(); // Clear the stat map before proceeding.
 		rarity = itemBase.getRarity(); // The rarity is initially the item base's rarity.
 		statMap.mergeMap(itemBase.getStatMap()); // Merge the item base into the stats.
@@ -90,8 +124,8 @@ public class Item {
 		}
 	}
 	
-	// Recalculate the name.
-	public void recalculateName() {
+	// Calculate the name.
+	private void calculateName() {
 		StringBuilder nameBuilder = new StringBuilder();
 		
 		// Add the prefixes.
@@ -130,7 +164,7 @@ public class Item {
 		int numValid = 0;
 		boolean[] validity = new boolean[newPrefixes.length];
 		for (int i = 0; i < newPrefixes.length; i++) {
-			validity[i] = newPrefixes[i].hasTags(itemBase.getPrefixReqs());
+			validity[i] = itemBase.isValidPrefix(newPrefixes[i]);
 			if (validity[i])
 				numValid++;
 		}
@@ -150,35 +184,36 @@ public class Item {
 		//Log.getDefaultLog().info("Changing prefixes from "
 		//		+ Arrays.toString(prefixes) + " to " + Arrays.toString(newPrefixes));
 		
+		checkNotShared();
 		setPrefixesFilter(newPrefixes);
-		recalculateName();
-		recalculateStats();
+		calculateName();
+		calculateStats();
 	}
 	
 	// Set the materials to the valid materials in a given array,
 	// and the invalid ones to default.
 	private void setMaterialsFilter(Component[] newMaterials) {
-		// Get the default materials.
-		String[] defaultMaterials = itemBase.getDefaultMaterials();
+		// Get the number of materials.
+		int numMaterials = itemBase.getDefaultMaterials().length;
 
 		// Figure out how many times we'll have to loop.
-		int numChecks = (defaultMaterials.length < newMaterials.length) ?
-				defaultMaterials.length : newMaterials.length;
+		int numChecks = (numMaterials < newMaterials.length) ?
+				numMaterials : newMaterials.length;
 
 		// Assign the valid materials from newMaterials and use the defaults otherwise.
-		materials = new Component[defaultMaterials.length];
+		materials = new Component[numMaterials];
 		for (int i = 0; i < numChecks; i++) {
-			boolean valid = newMaterials[i].hasTags(itemBase.getMaterialReqs()[i]);
+			boolean valid = itemBase.isValidMaterial(i, newMaterials[i]);
 			if (valid)
 				materials[i] = newMaterials[i];
 			else
-				materials[i] = world.getMaterial(defaultMaterials[i]);
+				materials[i] = itemBase.getDefaultMaterial(i);
 		}
 
 		// If numChecks is less than materials.length, fill in the remainder
 		// of materials with the defaults.
 		for (int i = numChecks; i < materials.length; i++) {
-			materials[i] = world.getMaterial(defaultMaterials[i]);
+			materials[i] = itemBase.getDefaultMaterial(i);
 		}
 	}
 	
@@ -187,11 +222,12 @@ public class Item {
 		//Log.getDefaultLog().info("Changing materials from "
 		//		+ Arrays.toString(materials) + " to " + Arrays.toString(newMaterials));
 		
+		checkNotShared();
 		setMaterialsFilter(newMaterials);
 		
 		// Recalculate our name and stats.
-		recalculateName();
-		recalculateStats();
+		calculateName();
+		calculateStats();
 	}
 	
 	// Set the item base to something.
@@ -199,6 +235,8 @@ public class Item {
 		//Log.getDefaultLog().info("Changing item base from "
 		//		+ itemBase.getName() + " to " + newItemBase.getName());
 		
+		checkNotShared();
+		
 		// Assign the item base.
 		itemBase = newItemBase;
 		
@@ -207,8 +245,29 @@ public class Item {
 		setPrefixesFilter(prefixes);
 		
 		// Recalculate the name and stats.
-		recalculateName();
-		recalculateStats();
+		calculateName();
+		calculateStats();
+	}
+	
+	// Shared items can't change, so they are equal if they are in the same world and are made from the same
+	// components. Other items can be changed while they are in a bag that has them hashed, so they are only equal
+	// to themselves.
+	@Override
+	public boolean equals(Object o) {
+		if (o == this)
+			return true;
+		if (!shared || !(o instanceof Item))
+			return false;
+		Item other = (Item)o;
+		return other.shared && world == other.world && itemBase == other.itemBase
+				&& Arrays.equals(prefixes, other.prefixes) && Arrays.equals(materials, other.materials);
+	}
+	
+	@Override
+	public int hashCode() {
+		if (!shared)
+			return System.identityHashCode(this);
+		return (itemBase.hashCode() * 31 + Arrays.hashCode(prefixes)) * 31 + Arrays.hashCode(materials);
 	}
 
 }
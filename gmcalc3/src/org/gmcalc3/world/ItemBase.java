@@ -1,5 +1,7 @@
 package org.gmcalc3.world;
 
+import java.util.Arrays;
+
 import org.gmcalc3.util.Handies;
 import org.hafermath.expression.ExpressionBuilder;
 import org.json.JSONArray;
@@ -20,6 +22,46 @@ public class ItemBase extends Component {
 	private String[] prefixReqs;		// The tag requirements for all prefixes.
 	private String[][] materialReqs;	// The tag requirements for each material.
 	private String[] defaultMaterials;	// The default materials that Item uses if no materials are passed to item.
+	private volatile Compatibility compatibility; // The requirements resolved against the world. Null until it is needed.
+	
+	// The tag requirements as bitsets over the world's tag ids, so checking a component is a few ANDs, and the
+	// components that meet them. It is built the first time it is needed and dropped when the world's component
+	// maps are replaced.
+	private static final class Compatibility {
+		private final Interner tagIds;				// The ids the bitsets are over.
+		private final long[] prefixBits;				// The tags every prefix needs.
+		private final long[][] materialBits;			// The tags each material needs.
+		private final Component[] validPrefixes;		// The prefixes that meet the prefix requirements.
+		private final Component[][] validMaterials;		// The materials that meet each material requirement.
+		private final Component[] defaultMaterials;		// The default materials, or null where the world doesn't have one.
+		
+		private Compatibility(ItemBase itemBase, World world) {
+			tagIds = world.getTagIds();
+			prefixBits = toBits(itemBase.prefixReqs, tagIds);
+			validPrefixes = world.getPrefixesMatching(itemBase.prefixReqs);
+			materialBits = new long[itemBase.materialReqs.length][];
+			validMaterials = new Component[itemBase.materialReqs.length][];
+			for (int i = 0; i < materialBits.length; i++) {
+				materialBits[i] = toBits(itemBase.materialReqs[i], tagIds);
+				validMaterials[i] = world.getMaterialsMatching(itemBase.materialReqs[i]);
+			}
+			defaultMaterials = new Component[itemBase.defaultMaterials.length];
+			for (int i = 0; i < defaultMaterials.length; i++)
+				defaultMaterials[i] = world.getMaterial(itemBase.defaultMaterials[i]);
+		}
+		
+		// Turn a tag requirement into a bitset of tag ids.
+		private static long[] toBits(String[] requirement, Interner tagIds) {
+			long[] bits = new long[0];
+			for (String tag : requirement) {
+				int id = tagIds.intern(tag);
+				if ((id >>> 6) >= bits.length)
+					bits = Arrays.copyOf(bits, (id >>> 6) + 1);
+				bits[id >>> 6] |= 1L << id;
+			}
+			return bits;
+		}
+	}
 	
 	// Constructors.
 	public ItemBase(String filePath, World world, JSONObject values, ExpressionBuilder expBuilder) throws JSONException {
@@ -63,6 +105,48 @@ public class ItemBase extends Component {
 		return defaultMaterials;
 	}
 	
+	// Get the requirements resolved against the world, building them if they haven't been yet.
+	private Compatibility getCompatibility() {
+		Compatibility c = compatibility;
+		if (c == null) {
+			c = new Compatibility(this, getWorld());
+			compatibility = c;
+		}
+		return c;
+	}
+	
+	// Drop the resolved requirements so that they are rebuilt against the world's current components.
+	void clearCompatibility() {
+		compatibility = null;
+	}
+	
+	// Check if a component can be a prefix of this.
+	public boolean isValidPrefix(Component prefix) {
+		Compatibility c = getCompatibility();
+		return prefix.hasTagBits(c.tagIds, c.prefixBits);
+	}
+	
+	// Check if a component can be the material in a slot of this.
+	public boolean isValidMaterial(int slot, Component material) {
+		Compatibility c = getCompatibility();
+		return material.hasTagBits(c.tagIds, c.materialBits[slot]);
+	}
+	
+	// Get the prefixes in the world that can be prefixes of this. The returned array must not be changed.
+	public Component[] getValidPrefixes() {
+		return getCompatibility().validPrefixes;
+	}
+	
+	// Get the materials in the world that can be the material in a slot of this. The returned array must not be changed.
+	public Component[] getValidMaterials(int slot) {
+		return getCompatibility().validMaterials[slot];
+	}
+	
+	// Get the default material for a slot, or null if the world doesn't have it.
+	public Component getDefaultMaterial(int slot) {
+		return getCompatibility().defaultMaterials[slot];
+	}
+	
 	public static final Parcelable.Creator<ItemBase> CREATOR
     		= new Parcelable.Creator<ItemBase>() {
 		public ItemBase createFromParcel(Parcel in) {
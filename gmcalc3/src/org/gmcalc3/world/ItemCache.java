@@ -0,0 +1,115 @@
+// A cache of the items of a world, keyed by the components they are made from. Inventories hold many copies of a
+// few compositions, so each composition is built once, with its stats, name, and rarity, and then shared. The
+// shared items can't be changed. The order of the prefixes doesn't matter to the key, so the same prefixes in any
+// order share the item that was made first, in the order it was asked for. The cache has to be cleared whenever the
+// components of the world are reloaded, since the items in it hold onto the old components.
+
+package org.gmcalc3.world;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+final class ItemCache {
+
+	// Orders components by their identity hash codes. Different components can have the same hash code, so this
+	// only puts prefixes into a canonical order up to those ties, and Key.equals() handles the ties.
+	private static final Comparator<Component> HASH_ORDER = new Comparator<Component>() {
+		@Override
+		public int compare(Component c1, Component c2) {
+			int h1 = c1.hashCode();
+			int h2 = c2.hashCode();
+			return (h1 < h2)? -1 : ((h1 == h2)? 0 : 1);
+		}
+	};
+
+	// The components an item was asked to be made from. Components are compared by identity, and the prefixes are
+	// sorted by HASH_ORDER.
+	private static final class Key {
+		private final ItemBase itemBase;
+		private final Component[] prefixes;
+		private final Component[] materials;
+		private final int hash;
+
+		private Key(ItemBase itemBase, Component[] prefixes, Component[] materials) {
+			this.itemBase = itemBase;
+			this.prefixes = prefixes;
+			this.materials = materials;
+			hash = (itemBase.hashCode() * 31 + Arrays.hashCode(prefixes)) * 31 + Arrays.hashCode(materials);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key)o;
+			return hash == other.hash && itemBase == other.itemBase
+					&& samePrefixes(prefixes, other.prefixes) && Arrays.equals(materials, other.materials);
+		}
+
+		// Check if two sorted arrays of prefixes hold the same prefixes. Prefixes with the same hash code can be in
+		// either order, so if the arrays aren't equal, each prefix is counted in both.
+		private static boolean samePrefixes(Component[] prefixes1, Component[] prefixes2) {
+			if (Arrays.equals(prefixes1, prefixes2))
+				return true;
+			if (prefixes1.length != prefixes2.length)
+				return false;
+			for (Component prefix : prefixes1) {
+				if (countOf(prefix, prefixes1) != countOf(prefix, prefixes2))
+					return false;
+			}
+			return true;
+		}
+
+		private static int countOf(Component prefix, Component[] prefixes) {
+			int count = 0;
+			for (Component c : prefixes) {
+				if (c == prefix)
+					count++;
+			}
+			return count;
+		}
+	}
+
+	private final World world;							// The world the items are in.
+	private final ConcurrentHashMap<Key, Item> items;	// The shared items.
+
+	// Constructor.
+	ItemCache(World world) {
+		this.world = world;
+		items = new ConcurrentHashMap<Key, Item>();
+	}
+
+	// Get the shared item made from some components, making it if there isn't one yet. A new item keeps the prefixes
+	// in the order they are given.
+	Item get(ItemBase itemBase, Component[] prefixes, Component[] materials) {
+		Component[] sortedPrefixes = prefixes.clone();
+		if (sortedPrefixes.length > 1)
+			Arrays.sort(sortedPrefixes, HASH_ORDER);
+		Key key = new Key(itemBase, sortedPrefixes, materials.clone());
+		Item item = items.get(key);
+		if (item == null) {
+			Item newItem = new Item(world, prefixes, materials, itemBase, true);
+			item = items.putIfAbsent(key, newItem);
+			if (item == null)
+				item = newItem;
+		}
+		return item;
+	}
+
+	// Drop all the shared items.
+	void clear() {
+		items.clear();
+	}
+
+	// Get the number of shared items.
+	int size() {
+		return items.size();
+	}
+
+}
@@ -4,6 +4,8 @@
 package org.gmcalc3.world;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Collection;
@@ -90,29 +92,76 @@ public class ListBag<E> implements List<E> {
 		
 	}
 	
-	// The contents of the bag.
-	private ArrayList<E> items; 
-	private ArrayList<Integer> counts;
+	// The contents of the bag. Each element is in items once, and its count is at the same index in counts.
+	// positions maps each element to its index. Inserting or removing anywhere but the end shifts the indices
+	// after it, so instead of fixing them all right away, only the indices before indexedSize are kept right
+	// and the rest are fixed the next time one of them is looked up.
+	private ArrayList<E> items;
+	private int[] counts;
+	private HashMap<Object, Integer> positions;
+	private int indexedSize;
 	
 	// Constructors.
 	public ListBag() {
 		items = new ArrayList<E>();
-		counts = new ArrayList<Integer>();
+		counts = new int[10];
+		positions = new HashMap<Object, Integer>();
 	}
 	
-	private ListBag(List<E> items, List<Integer> counts) {
-		if (items instanceof ArrayList)
-			this.items = (ArrayList<E>)items;
-		else
-			this.items = new ArrayList<E>(items);
-		if (counts instanceof ArrayList)
-			this.counts = (ArrayList<Integer>)counts;
+	private ListBag(List<E> items, int[] counts) {
+		this.items = new ArrayList<E>(items);
+		this.counts = counts;
+		positions = new HashMap<Object, Integer>();
+		for (E e : items)
+			positions.put(e, -1);
+		indexedSize = 0;
+	}
+	
+	// MODIFIES: this
+	// EFFECTS:  Makes sure counts can hold a number of elements.
+	private void ensureCapacity(int capacity) {
+		if (capacity > counts.length)
+			counts = Arrays.copyOf(counts, Math.max(capacity, counts.length * 2));
+	}
+	
+	// MODIFIES: this
+	// EFFECTS:  Inserts an element that isn't in this at the given index with the given count.
+	private void insert(int index, E e, int count) {
+		int size = items.size();
+		ensureCapacity(size + 1);
+		System.arraycopy(counts, index, counts, index + 1, size - index);
+		counts[index] = count;
+		items.add(index, e);
+		positions.put(e, index);
+		if (index == size && indexedSize == size)
+			indexedSize++;
 		else
-			this.counts = new ArrayList<Integer>(counts);
+			indexedSize = Math.min(indexedSize, index);
 	}
 	
 	// MODIFIES: this
-	// EFFECTS:	 Adds e to this, increasing its count by one. If e isn't already in this it is added to the end. Returns true.
+	// EFFECTS:  Removes the element at the given index and returns it.
+	private E delete(int index) {
+		int size = items.size();
+		System.arraycopy(counts, index + 1, counts, index, size - index - 1);
+		E e = items.remove(index);
+		positions.remove(e);
+		indexedSize = Math.min(indexedSize, index);
+		return e;
+	}
+	
+	// MODIFIES: this
+	// EFFECTS:  Moves the element at index from to index to, keeping its count.
+	private void move(int from, int to) {
+		if (from == to)
+			return;
+		int count = counts[from];
+		E e = delete(from);
+		insert(to, e, count);
+	}
+	
+	// MODIFIES: this
+	// EFFECTS:  Adds e to this, increasing its count by one. If e isn't already in this it is added to the end. Returns true.
 	public boolean add(E e) {
 		return add(e, 1);
 	}
@@ -121,14 +170,10 @@ public class ListBag<E> implements List<E> {
 	// EFFECTS:  Adds e to this, increasing its count by amount. If e isn't already in this it is added to the end. Returns true;
 	public boolean add(E e, int amount) {
 		int i = indexOf(e);
-		if (i == -1) {
-			items.add(e);
-			counts.add(amount);
-		}
-		else {
-			int newCount = counts.get(i) + amount;
-			counts.set(i, newCount);
-		}
+		if (i == -1)
+			insert(items.size(), e, amount);
+		else
+			counts[i] += amount;
 		return true;
 	}
 	
@@ -143,18 +188,13 @@ public class ListBag<E> implements List<E> {
 	public void add(int index, E e, int amount) {
 		int i = indexOf(e);
 		if (i == -1) {
-			items.add(index, e);
-			counts.add(index, amount);
-		}
-		else if (i == index) {
-			counts.set(index, counts.get(index) + amount);
+			insert(index, e, amount);
 		}
 		else {
-			int newCount = counts.get(i) + amount;
-			items.add(index, e);
-			counts.add(index, newCount);
-			items.remove(i);
-			counts.remove(i);
+			counts[i] += amount;
+			// The element is inserted before it is taken out of its old position, so if it was before the index,
+			// it ends up just before it.
+			move(i, (i < index)? index - 1 : index);
 		}
 	}
 	
@@ -179,12 +219,13 @@ public class ListBag<E> implements List<E> {
 	// EFFECTS:  Removes all elements from this.
 	public void clear() {
 		items.clear();
-		counts.clear();
+		positions.clear();
+		indexedSize = 0;
 	}
 	
 	// EFFECTS:  Returns true if this contains at least one of the given element.
 	public boolean contains(Object o) {
-		return items.contains(o);
+		return positions.containsKey(o);
 	}
 	
 	// EFFECTS:  Returns true if this contains at least one of every element in the collection.
@@ -214,7 +255,9 @@ public class ListBag<E> implements List<E> {
 	
 	// EFFECTS:  Returns the count of the element at the specified position in this list.
 	public int getCount(int index) {
-		return counts.get(index);
+		if (index < 0 || index >= items.size())
+			throw new IndexOutOfBoundsException();
+		return counts[index];
 	}
 	
 	// EFFECTS:  Returns the count of the value in this list, returning 0 if none are in this.
@@ -222,7 +265,7 @@ public class ListBag<E> implements List<E> {
 		int index = indexOf(o);
 		if (index == -1)
 			return 0;
-		return counts.get(index);
+		return counts[index];
 	}
 	
 	// EFFECTS:  Returns the hash code value for this list. See java.util.List.hashCode() for details.
@@ -236,7 +279,18 @@ public class ListBag<E> implements List<E> {
 	// EFFECTS:  Returns the index of the first occurrence of the specified element in this list
 	//			 or -1 if this does not contain the element.
 	public int indexOf(Object o) {
-		return items.indexOf(o);
+		Integer index = positions.get(o);
+		if (index == null)
+			return -1;
+		if (index >= 0 && index < indexedSize)
+			return index;
+		
+		// Fix the indices that have shifted.
+		int size = items.size();
+		for (int i = indexedSize; i < size; i++)
+			positions.put(items.get(i), i);
+		indexedSize = size;
+		return positions.get(o);
 	}
 	
 	// EFFECTS:  Returns true if this contains no elements.
@@ -252,7 +306,8 @@ public class ListBag<E> implements List<E> {
 	// EFFECTS:  Returns the index of the last occurrence of the specified element in this list
 	//			 or -1 if this does not contain the element.
 	public int lastIndexOf(Object o) {
-		return items.lastIndexOf(o);
+		// Each element is in this at most once.
+		return indexOf(o);
 	}
 	
 	// EFFECTS:  Returns a list iterator over the elements in this list in proper sequence.
@@ -271,8 +326,7 @@ public class ListBag<E> implements List<E> {
 	// MODIFIES: this
 	// EFFECTS:  Removes the element at the given index and sets its count to 0.
 	public E remove(int index) {
-		counts.remove(index);
-		return items.remove(index);
+		return delete(index);
 	}
 	
 	// MODIFIES: this
@@ -287,11 +341,11 @@ public class ListBag<E> implements List<E> {
 		int index = indexOf(o);
 		if (index == -1)
 			return false;
-		int newCount = counts.get(index) - amount;
+		int newCount = counts[index] - amount;
 		if (newCount < 1)
 			remove(index);
 		else
-			counts.set(index, newCount);
+			counts[index] = newCount;
 		return true;
 	}
 	
@@ -311,22 +365,23 @@ public class ListBag<E> implements List<E> {
 	// EFFECTS:  Remove from this list all elements that aren't in the given collection.
 	public boolean retainAll(Collection<?> c) {
 		boolean changed = false;
-		ArrayList<E> newItems = new ArrayList<E>();
-		ArrayList<Integer> newCounts = new ArrayList<Integer>();
 		int size = items.size();
+		int n = 0;
 		for (int i = 0; i < size; i++) {
 			E item = items.get(i);
 			if (c.contains(item)) {
-				newItems.add(item);
-				newCounts.add(counts.get(i));
+				items.set(n, item);
+				counts[n++] = counts[i];
 			}
-			else
+			else {
+				positions.remove(item);
 				changed = true;
+			}
+		}
+		if (changed) {
+			items.subList(n, size).clear();
+			indexedSize = 0;
 		}
-		items.clear();
-		counts.clear();
-		items = newItems;
-		counts = newCounts;
 		return changed;
 	}
 	
@@ -341,15 +396,17 @@ public class ListBag<E> implements List<E> {
 		int newItemIndex = indexOf(newItem);
 		// If the new item isn't already in the list, replace the element at index with the given one.
 		if (newItemIndex == -1) {
-			items.set(index, newItem);
-			counts.set(index, 1);
+			delete(index);
+			insert(index, newItem, 1);
 		}
-		// If the element is in the list, move it to the index and remove the old thing that was there.
-		else {
-			items.set(index, newItem);
-			counts.set(index, counts.get(newItemIndex));
-			items.remove(newItemIndex);
-			counts.remove(newItemIndex);
+		// If the element is in the list, remove the old thing that was there and move the element into its place.
+		// If the element was before the index, removing it shifts the place down by one.
+		else if (newItemIndex != index) {
+			delete(index);
+			if (newItemIndex > index)
+				move(newItemIndex - 1, index);
+			else
+				move(newItemIndex, index - 1);
 		}
 		return oldItem;
 	}
@@ -357,7 +414,9 @@ public class ListBag<E> implements List<E> {
 	// MODIFIES: this
 	// EFFECTS:  Sets the count at the specified index.
 	public void setCount(int index, int count) {
-		counts.set(index, count);
+		if (index < 0 || index >= items.size())
+			throw new IndexOutOfBoundsException();
+		counts[index] = count;
 	}
 	
 	// MODIFIES: this
@@ -373,9 +432,10 @@ public class ListBag<E> implements List<E> {
 		return items.size();
 	}
 	
-	// EFFECTS:  Returns a view of the portion of this list of the range [fromIndex, toIndex)
+	// EFFECTS:  Returns a copy of the portion of this list of the range [fromIndex, toIndex).
+	//			 Unlike java.util.List.subList(), changing the copy doesn't change this.
 	public List<E> subList(int fromIndex, int toIndex) {
-		return new ListBag<E>(items.subList(fromIndex, toIndex), counts.subList(fromIndex, toIndex));
+		return new ListBag<E>(items.subList(fromIndex, toIndex), Arrays.copyOfRange(counts, fromIndex, toIndex));
 	}
 	
 	// EFFECTS:  Returns an array containing all the items in this list in proper sequence.
@@ -6,24 +6,30 @@ package org.gmcalc3.world;
 public class Range {
 
 	private int min, max;
-	private String displayString;
+	private String displayString; // Built when it is first needed after a change.
 	
 	public Range(int min, int max) {
 		this.min = min;
 		this.max = max;
-		updateDisplayString();
 	}
 	
 	public void add(Range other) {
 		min += other.min;
 		max += other.max;
-		updateDisplayString();
+		displayString = null;
+	}
+	
+	// Add count copies of a range.
+	public void add(Range other, int count) {
+		min += other.min * count;
+		max += other.max * count;
+		displayString = null;
 	}
 	
 	public void subtract(Range other) {
 		min -= other.min;
 		max -= other.max;
-		updateDisplayString();
+		displayString = null;
 	}
 	
 	public int getMin() {
@@ -39,6 +45,8 @@ public class Range {
 	}
 	
 	public String toString() {
+		if (displayString == null)
+			updateDisplayString();
 		return displayString;
 	}
 }
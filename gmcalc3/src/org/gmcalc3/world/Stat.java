@@ -1,194 +1,385 @@
 package org.gmcalc3.world;
 
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.hafermath.expression.ConstantExpression;
 import org.hafermath.expression.Expression;
 import org.hafermath.expression.ExpressionBuilder;
+import org.hafermath.expression.PartialEvaluator;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 public class Stat {
-	
+
 	public static final String STRINGS_KEY = "strings";
 	public static final String RANGE_KEY = "range";
 	public static final String EXPRESSION_KEY = "expression";
 
-	//The different parts of a stat.
-	private String[] strings;
-	private Range range;
-	private Expression expression;
-	
+	private static final int[] EMPTY_INTS = {};
+	private static final String[] EMPTY_STRINGS = {};
+
+	// The source of versions. Versions are shared by every stat and stat map, so a version never repeats.
+	private static final AtomicLong VERSIONS = new AtomicLong();
+
+	// The different parts of a stat. They are kept in primitive form so that merging stats doesn't allocate once the
+	// arrays have grown to fit, and the objects that represent them are only built when they are asked for.
+	private boolean hasStrings;
+	private String[] stringParts;	// The strings, in the order they were added. They are interned, so they are compared by reference.
+	private int numStrings;
+	private String[] strings;		// The strings. Null when they have changed.
+
+	private boolean hasRange;
+	private int rangeMin, rangeMax;
+	private int[] dice;				// The (min, max, count) triples of the dice the range is the sum of, sorted like Distribution.
+	private int diceLength;
+	private Distribution distribution; // The distribution of the dice. Null when it has changed.
+
+	private boolean hasExpression;
+	private Expression variablePart;	// The sum of the variable expressions merged into this, or null if there are none.
+	private float constantPart;			// The sum of the constant expressions merged into this.
+	private Expression expression;		// The expression. Null when it has changed.
+	private float value; // The value of a variable expression as of the last evaluation of the stat map this is in.
+
+	private long version;				// Changes every time this changes.
+	private String[] displayStrings;	// The display strings. Null when this has changed.
+	private String displayString;		// The display strings as one string. Null when this has changed.
+
 	// Constructors.
 	public Stat(String[] strings, Range range, Expression expression) {
-		this.strings = strings;
-		this.range = range;
-		this.expression = expression;
+		stringParts = EMPTY_STRINGS;
+		dice = EMPTY_INTS;
+		if (strings != null)
+			setStrings(strings);
+		if (range != null)
+			setRange(range.getMin(), range.getMax());
+		setExpression(expression);
+		changed();
 	}
-	
+
 	public Stat() {
 		this(null, null, null);
 	}
-	
+
 	public Stat(String rawExpression, ExpressionBuilder expBuilder) {
 		this(null, null, expBuilder.makeExpression(rawExpression));
 	}
-	
+
 	public Stat(JSONObject values, ExpressionBuilder expBuilder) throws JSONException {
 		this();
-		
+
 		// Get the strings.
 		JSONArray rawStrings = values.optJSONArray(STRINGS_KEY);
 		if (rawStrings != null) {
-			strings = new String[rawStrings.length()];
+			String[] strings = new String[rawStrings.length()];
 			for (int i = 0; i < strings.length; i++) {
 				strings[i] = rawStrings.getString(i);
 			}
+			setStrings(strings);
 		}
-		
+
 		// Get the range.
 		JSONArray rawRange = values.optJSONArray(RANGE_KEY);
 		if (rawRange != null) {
-			range = new Range(rawRange.getInt(0), rawRange.getInt(1));
+			setRange(rawRange.getInt(0), rawRange.getInt(1));
 		}
-		
+
 		// Get the expression.
 		String rawExpression = values.optString(EXPRESSION_KEY);
 		if (rawExpression != null) {
-			expression = expBuilder.makeExpression(rawExpression);
+			setExpression(expBuilder.makeExpression(rawExpression));
+		}
+		changed();
+	}
+
+	// Get a version that hasn't been used yet.
+	static long nextVersion() {
+		return VERSIONS.incrementAndGet();
+	}
+
+	// Note that this has changed.
+	private void changed() {
+		version = nextVersion();
+		displayStrings = null;
+		displayString = null;
+	}
+
+	// Get the version of this stat. It is different every time the stat changes in a way that could change
+	// how it is displayed, so display strings can be cached against it.
+	public long getVersion() {
+		return version;
+	}
+
+	// Set the strings, dropping repeats.
+	private void setStrings(String[] newStrings) {
+		hasStrings = true;
+		numStrings = 0;
+		for (String s : newStrings)
+			addString(s.intern());
+		strings = null;
+	}
+
+	// Set the range to a single die.
+	private void setRange(int min, int max) {
+		hasRange = true;
+		rangeMin = min;
+		rangeMax = max;
+		if (dice.length < 3)
+			dice = new int[3];
+		dice[0] = Math.min(min, max);
+		dice[1] = Math.max(min, max);
+		dice[2] = 1;
+		diceLength = 3;
+		distribution = null;
+	}
+
+	// Set the expression, splitting it into its variable and constant parts.
+	private void setExpression(Expression newExpression) {
+		hasExpression = newExpression != null;
+		if (newExpression instanceof ConstantExpression) {
+			variablePart = null;
+			constantPart = ((ConstantExpression)newExpression).getValue();
 		}
+		else {
+			variablePart = newExpression;
+			constantPart = 0;
+		}
+		expression = newExpression;
 	}
-	
+
 	// Accessors.
 	public String[] getStrings() {
+		if (!hasStrings)
+			return null;
+		if (strings == null)
+			strings = Arrays.copyOf(stringParts, numStrings);
 		return strings;
 	}
-	
+
+	// Get the range. Ranges can be changed, so each call makes a new one, and changing it doesn't change this.
 	public Range getRange() {
-		return range;
+		if (!hasRange)
+			return null;
+		return new Range(rangeMin, rangeMax);
+	}
+
+	// Get the middle of the range, or 0 if there is no range.
+	public float getRangeMean() {
+		return (rangeMin + rangeMax) / 2f;
+	}
+
+	// Get the exact distribution of the range, or null if there is no range.
+	public Distribution getDistribution() {
+		if (!hasRange)
+			return null;
+		if (distribution == null)
+			distribution = Distribution.fromDice(dice, diceLength);
+		return distribution;
 	}
-	
+
 	public Expression getExpression() {
+		if (!hasExpression)
+			return null;
+		if (expression == null) {
+			if (variablePart == null)
+				expression = new ConstantExpression(constantPart);
+			else if (constantPart == 0)
+				expression = variablePart;
+			else
+				expression = variablePart.addWith(new ConstantExpression(constantPart));
+		}
 		return expression;
 	}
 
+	// Get the value of the expression. Variable expressions have the value they had when the stat map
+	// this is in was last evaluated.
+	public float getValue() {
+		if (!hasExpression)
+			return 0;
+		if (variablePart == null)
+			return constantPart;
+		return value;
+	}
+
+	void setValue(float value) {
+		if (Float.floatToIntBits(value) != Float.floatToIntBits(this.value)) {
+			this.value = value;
+			changed();
+		}
+	}
+
+	// Replace the expression with what is left of it after the evaluator's known variables are filled in.
+	void specializeExpression(PartialEvaluator evaluator) {
+		setExpression(evaluator.specialize(getExpression()));
+		changed();
+	}
+
 	// Return a copy of this stat.
 	public Stat copy() {
+		return copy(1);
+	}
+
+	// Return a stat with count copies of this merged together.
+	public Stat copy(int count) {
+		checkCount(count);
 		Stat out = new Stat();
-		if (strings != null)
-			out.strings = Arrays.copyOf(strings, strings.length);
-		if (range != null)
-			out.range = new Range(range.getMin(), range.getMax());
-		if (expression != null)
-			out.expression = expression.copy();
+		out.set(this, count);
 		return out;
 	}
-	
+
+	// Make this count copies of another stat merged together, reusing this stat's arrays.
+	void set(Stat other, int count) {
+		hasStrings = false;
+		numStrings = 0;
+		strings = null;
+		hasRange = false;
+		rangeMin = 0;
+		rangeMax = 0;
+		diceLength = 0;
+		distribution = null;
+		hasExpression = false;
+		variablePart = null;
+		constantPart = 0;
+		expression = null;
+		merge(other, count);
+
+		// A single copy has the same immutable parts as the original, so they can be shared.
+		if (count == 1) {
+			strings = other.strings;
+			distribution = other.distribution;
+			expression = other.expression;
+		}
+		value = other.value * count;
+		changed();
+	}
+
+	// Make sure a number of copies of a stat is positive, the same as Distribution.times().
+	private static void checkCount(int count) {
+		if (count < 1)
+			throw new IllegalArgumentException("A stat can only be copied or merged a positive number of times.");
+	}
+
+	// Add an interned string if this doesn't already have it.
+	private void addString(String s) {
+		for (int i = 0; i < numStrings; i++) {
+			if (stringParts[i] == s)
+				return;
+		}
+		if (numStrings == stringParts.length)
+			stringParts = Arrays.copyOf(stringParts, Math.max(4, numStrings * 2));
+		stringParts[numStrings++] = s;
+	}
+
+	// Add count of a die to the dice, keeping them sorted.
+	private void addDie(int min, int max, int count) {
+		int i = 0;
+		for (; i < diceLength; i += 3) {
+			if (dice[i] == min && dice[i + 1] == max) {
+				dice[i + 2] += count;
+				return;
+			}
+			if (dice[i] > min || (dice[i] == min && dice[i + 1] > max))
+				break;
+		}
+		if (diceLength == dice.length)
+			dice = Arrays.copyOf(dice, Math.max(6, diceLength * 2));
+		System.arraycopy(dice, i, dice, i + 3, diceLength - i);
+		dice[i] = min;
+		dice[i + 1] = max;
+		dice[i + 2] = count;
+		diceLength += 3;
+	}
+
 	// Take a stat and merge its values into this, adding ranges and numbers.
 	public void merge(Stat other) {
+		merge(other, 1);
+	}
+
+	// Merge count copies of a stat into this. The strings are only merged once, and the ranges and numbers are
+	// scaled by count, so this takes the same time for any positive count.
+	public void merge(Stat other, int count) {
+		checkCount(count);
 		// Merge the strings.
-		if (other.strings != null) {
-			if (strings == null) {
-				strings = Arrays.copyOf(other.strings, other.strings.length);
-			}
-			else {
-				// Count the number of strings in the incoming array that we don't already have.
-				int numNew = other.strings.length; // Assume we are adding nothing but new strings.
-				for (int q, i = 0; i < other.strings.length; i++) {
-					// Loop through strings to see if we have this or not. If we do, get rid of the assumption.
-					for (q = 0; q < strings.length; q++) {
-						if (strings[q].equals(other.strings[i])) {
-							numNew--;
-							break;
-						}
-					}
-				}
-					
-				// Merge the new strings into the array.
-				String[] newStrings = Arrays.copyOf(strings, strings.length + numNew);
-				for (int n = strings.length, i = 0; i < other.strings.length; i++) {
-					// See if the string is unique.
-					boolean newString = true;
-					for (int q = 0; q < strings.length; q++) {
-						if (strings[q].equals(other.strings[i])) {
-							newString = false;
-							break;
-						}
-					}
-					if (newString)
-						newStrings[n++] = other.strings[i];
-				}
-				strings = newStrings;
-			}
+		if (other.hasStrings) {
+			int oldNumStrings = numStrings;
+			for (int i = 0; i < other.numStrings; i++)
+				addString(other.stringParts[i]);
+			if (!hasStrings || numStrings != oldNumStrings)
+				strings = null;
+			hasStrings = true;
 		}
-		
+
 		// Add the ranges.
-		if (other.range != null) {
-			if (range == null)
-				range = new Range(other.range.getMin(), other.range.getMax());
-			else
-				range.add(other.range);
+		if (other.hasRange) {
+			rangeMin += other.rangeMin * count;
+			rangeMax += other.rangeMax * count;
+			for (int i = 0; i < other.diceLength; i += 3)
+				addDie(other.dice[i], other.dice[i + 1], other.dice[i + 2] * count);
+			hasRange = true;
+			distribution = null;
 		}
-		
-		// Add the expressions.
-		if (other.expression != null) {
-			if (expression == null)
-				expression = other.expression.copy();
-			else
-				expression = expression.addWith(other.expression);
+
+		// Add the expressions. Constants are added up as numbers, and only the variable expressions are combined.
+		if (other.hasExpression) {
+			if (other.variablePart != null) {
+				Expression scaled = other.variablePart.multiplyBy(count);
+				variablePart = (variablePart == null)? scaled : variablePart.addWith(scaled);
+			}
+			constantPart += other.constantPart * count;
+			hasExpression = true;
+			expression = null;
 		}
+		changed();
 	}
-	
-	// Return an array of strings that represents the different parts of this stat.
+
+	// Append the range and expression value, eg. "[1, 6] + 2", to a builder.
+	private void appendRangeAndValue(StringBuilder out, int expVal) {
+		if (!hasRange) {
+			out.append(expVal);
+			return;
+		}
+		out.append('[').append(rangeMin).append(", ").append(rangeMax).append(']');
+		if (expVal < 0)
+			out.append(" - ").append(expVal * -1);
+		else if (expVal > 0)
+			out.append(" + ").append(expVal);
+	}
+
+	// Return an array of strings that represents the different parts of this stat. The strings are cached until
+	// this changes, and the returned array must not be changed.
 	public String[] toDisplayStrings() {
+		if (displayStrings == null)
+			displayStrings = buildDisplayStrings();
+		return displayStrings;
+	}
+
+	private String[] buildDisplayStrings() {
 		// Get a number to represent the expression.
-		int expVal = (expression == null)? 0 : (int)expression.getValue();
-		
-		// Create the output array.
-		String[] out;
-		if (strings == null)
-			out = new String[1];
-		else if (range == null && expVal == 0)
-			out = new String[strings.length];
-		else
-			out = new String[strings.length + 1];
-		
-		// If we have strings...
-		if (strings != null) {
-			// Add the strings in.
-			for (int i = 0; i < strings.length; i++) {
-				out[i] = strings[i];
-			}
-			// Return now if the range and expression don't need to be displayed.
-			if (range == null && expVal == 0)
-				return out;
-			// Otherwise, add the range and val appropriately.
-			if (range == null && expVal != 0)
-				out[strings.length] = "" + expVal;
-			else if (range != null && expVal == 0)
-				out[strings.length] = range.toString();
-			else 
-				out[strings.length] = range.toString() + ((expVal < 0)? " - " + (expVal * -1) : " + " + expVal);
-			// Return.
-			return out;
-		}
-		
-		// If there are no strings, the only output is the range and expression.
-		if (range == null)
-			out[0] = "" + expVal;
-		else if (expVal == 0)
-			out[0] = range.toString();
-		else
-			out[0] = range.toString() + ((expVal < 0)? " - " + (expVal * -1) : " + " + expVal);
-		// Return.
+		int expVal = (int)getValue();
+
+		// If the range and expression don't need to be displayed, the output is just the strings.
+		if (hasStrings && !hasRange && expVal == 0)
+			return getStrings().clone();
+
+		// Otherwise, the output is the strings followed by the range and value.
+		int n = hasStrings? numStrings : 0;
+		String[] out = new String[n + 1];
+		System.arraycopy(stringParts, 0, out, 0, n);
+		StringBuilder last = new StringBuilder();
+		appendRangeAndValue(last, expVal);
+		out[n] = last.toString();
 		return out;
 	}
-	
+
 	public String toString() {
-		String[] dispStrings = toDisplayStrings();
-		if (dispStrings.length == 1)
-			return dispStrings[0];
-		else
-			return  Arrays.toString(dispStrings);
+		if (displayString == null) {
+			String[] dispStrings = toDisplayStrings();
+			if (dispStrings.length == 1)
+				displayString = dispStrings[0];
+			else
+				displayString = Arrays.toString(dispStrings);
+		}
+		return displayString;
 	}
 }
@@ -4,13 +4,17 @@ package org.gmcalc3.world;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.TreeMap;
-import java.util.Map;
 
 import org.hafermath.expression.ConstantExpression;
+import org.hafermath.expression.EvaluationContext;
 import org.hafermath.expression.Expression;
 import org.hafermath.expression.ExpressionBuilder;
+import org.hafermath.expression.PartialEvaluator;
 import org.hafermath.expression.VariableExpression;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -18,44 +22,66 @@ import org.json.JSONObject;
 
 public class StatMap {
 	
-	// Compares the expressions in stats to figure out what order to evaluate them in.
-	public static class StatEvalOrderComparator implements Comparator<Stat> {
-
-		// 1:  o1 > o2
-		// 0:  o1 == o2;
-		// -1: o1 < o2
-		@Override
-		public int compare(Stat o1, Stat o2) {
-			Expression exp1 = o1.getExpression();
-			Expression exp2 = o2.getExpression();
-			if (exp1 == null) {
-				if (exp2 == null)
-					return 0;
-				return -1;
-			}
-			if (exp2 == null)
-				return 1;
-			if (exp1 instanceof ConstantExpression) {
-				if (exp2 instanceof ConstantExpression)
-					return 0;
-				return -1;
-			}
-			if (exp2 instanceof ConstantExpression)
-				return 1;
-			return 0;
-		}
-		
-	}
+	private static final int[] EMPTY_IDS = {};
+	private static final Stat[] EMPTY_STATS = {};
+	
+	// The stats are kept in parallel arrays sorted by the ids of their keys in the schema, with a bitset of the
+	// ids that are present. Merging maps is a walk over both arrays of ids, and keys are only compared by name
+	// when they are listed for display.
+	private final StatSchema schema;	// The ids of the keys.
+	private int[] ids;					// The id of each stat's key, in increasing order.
+	private Stat[] stats;				// The stats.
+	private int size;					// The number of stats.
+	private long[] present;				// Bit id is set if the key with that id has a stat.
+	private int[] nameOrder;			// The indices of the stats in key order.
+	private int[] nameOrderIds;			// The ids of the keys when nameOrder was found.
+	private Stat[] spares;				// Stats that were recycled from this, to be reused by merges.
+	private int numSpares;
+	
+	// The display strings, cached against versions. The map's version is the newest of its own version and the
+	// versions of its stats, and each line is cached against the key and the version of the stat at its index.
+	private long modVersion;			// Changes every time a key is added or removed or a stat is replaced.
+	private String[] lines;				// The display string of each stat, by index.
+	private int[] lineIds;				// The id of the key each line was made for.
+	private long[] lineVersions;		// The version of the stat each line was made for.
+	private String[] displayStrings;	// The display strings in key order.
+	private long displayStringsVersion;
+	private String displayString;		// The display strings as one string.
+	private long displayStringVersion;
 	
-	private TreeMap<String, Stat> stats; // The stats and their names.
+	// The slot layout that expressions are bound against. Each stat's index is its slot, and there is one extra
+	// slot at the end that is always 0 for variables that aren't keys in this map.
+	private boolean layoutDirty;				// If true, the keys may have changed since the layout was built.
+	private int[] layoutIds;					// The ids of the keys when the layout was built.
+	private Expression[] boundExpressions;		// The expression each slot's bindings were made for.
+	private int[][] slotBindings;				// The variable slots of each slot's expression.
+	private String[][] slotVariables;			// The variable names each slot's bindings were made for.
+	private EvaluationContext context;			// The value of each slot.
+	
+	// The evaluation plan. The variable expressions form a dependency graph through their bindings, and
+	// they are evaluated in a topological order of that graph.
+	private boolean planDirty;					// If true, the dependencies have changed since the plan was built.
+	private int[] evalOrder;					// The slots with variable expressions, in the order to evaluate them.
+	private int[] dependentsStart;				// dependents[dependentsStart[s]..dependentsStart[s + 1]) depend on slot s.
+	private int[] dependents;
+	private String[] cyclicKeys;				// The keys that are in, or depend on, a dependency cycle.
+	
+	// Constructors. Maps that will be merged together should share a schema.
+	public StatMap(StatSchema schema) {
+		this.schema = schema;
+		ids = EMPTY_IDS;
+		stats = EMPTY_STATS;
+		spares = EMPTY_STATS;
+		present = new long[0];
+		layoutDirty = true;
+	}
 	
-	// Constructors.
 	public StatMap() {
-		stats = new TreeMap<String, Stat>();
+		this(StatSchema.getDefault());
 	}
 	
-	public StatMap(JSONObject rawStats, ExpressionBuilder expBuilder) throws JSONException {
-		this();
+	public StatMap(StatSchema schema, JSONObject rawStats, ExpressionBuilder expBuilder) throws JSONException {
+		this(schema);
 		JSONArray keys = rawStats.names();
 		if (keys != null) {
 			for (int i = 0; i < keys.length(); i++) {
@@ -71,113 +97,548 @@ public class StatMap {
 					JSONObject statObj = rawStats.getJSONObject(key);
 					stat = new Stat(statObj, expBuilder);
 				}
-				stats.put(key, stat);
+				put(key, stat);
 			}
 		}
 	}
 	
+	public StatMap(JSONObject rawStats, ExpressionBuilder expBuilder) throws JSONException {
+		this(StatSchema.getDefault(), rawStats, expBuilder);
+	}
+	
+	// Get the schema the keys of this map are interned in.
+	public StatSchema getSchema() {
+		return schema;
+	}
+	
+	// Check if the key with an id has a stat.
+	private boolean isPresent(int id) {
+		int word = id >>> 6;
+		return word < present.length && (present[word] & (1L << id)) != 0;
+	}
+	
+	private void setPresent(int id, boolean value) {
+		int word = id >>> 6;
+		if (word >= present.length)
+			present = Arrays.copyOf(present, Math.max(word + 1, present.length * 2));
+		if (value)
+			present[word] |= 1L << id;
+		else
+			present[word] &= ~(1L << id);
+	}
+	
+	// Get the index of the stat with an id, or -1 if there isn't one.
+	private int indexOf(int id) {
+		if (id < 0 || !isPresent(id))
+			return -1;
+		return Arrays.binarySearch(ids, 0, size, id);
+	}
+	
+	// Note that the keys may have changed.
+	private void keysChanged() {
+		layoutDirty = true;
+		modVersion = Stat.nextVersion();
+	}
+	
+	// Get the version of this map. It is different every time a stat is added, removed, replaced, or changed,
+	// so display strings can be cached against it.
+	public long getVersion() {
+		long version = modVersion;
+		for (int i = 0; i < size; i++)
+			version = Math.max(version, stats[i].getVersion());
+		return version;
+	}
+	
+	// Check if the keys are the same as the first size ids in an array.
+	private boolean hasIds(int[] otherIds) {
+		if (otherIds == null || otherIds.length != size)
+			return false;
+		for (int i = 0; i < size; i++) {
+			if (ids[i] != otherIds[i])
+				return false;
+		}
+		return true;
+	}
+	
+	// Make count copies of a stat merged together, reusing a spare stat if there is one.
+	private Stat copyOf(Stat stat, int count) {
+		if (numSpares == 0)
+			return stat.copy(count);
+		Stat out = spares[--numSpares];
+		spares[numSpares] = null;
+		out.set(stat, count);
+		return out;
+	}
+	
+	// Make sure there is room for a number of stats.
+	private void ensureCapacity(int capacity) {
+		if (capacity > ids.length) {
+			int newCapacity = Math.max(capacity, ids.length * 2);
+			ids = Arrays.copyOf(ids, newCapacity);
+			stats = Arrays.copyOf(stats, newCapacity);
+		}
+	}
+	
+	// Insert a stat at an index.
+	private void insert(int index, int id, Stat stat) {
+		ensureCapacity(size + 1);
+		System.arraycopy(ids, index, ids, index + 1, size - index);
+		System.arraycopy(stats, index, stats, index + 1, size - index);
+		ids[index] = id;
+		stats[index] = stat;
+		size++;
+		setPresent(id, true);
+		keysChanged();
+	}
+	
 	// Clear the values from this stat map.
 	public void clear() {
-		stats.clear();
+		Arrays.fill(stats, 0, size, null);
+		Arrays.fill(present, 0);
+		size = 0;
+		keysChanged();
+	}
+	
+	// Clear the values from this stat map and keep its stats to be reused by later merges, so that a scratch map
+	// that is cleared and merged into over and over stops allocating once it has grown to fit. The stats are
+	// overwritten, so this is only for maps whose stats are never handed out or put in from elsewhere.
+	public void recycle() {
+		if (numSpares + size > spares.length)
+			spares = Arrays.copyOf(spares, Math.max(numSpares + size, spares.length * 2));
+		System.arraycopy(stats, 0, spares, numSpares, size);
+		numSpares += size;
+		clear();
 	}
 	
 	// Put a stat in this, overriding the old value if there is one.
 	public void put(String key, Stat value) {
-		stats.put(key, value);
+		int id = schema.intern(key);
+		int index = indexOf(id);
+		if (index >= 0) {
+			stats[index] = value;
+			modVersion = Stat.nextVersion();
+		}
+		else
+			insert(-(Arrays.binarySearch(ids, 0, size, id) + 1), id, value);
+	}
+	
+	// Remove the stat for a key.
+	public void remove(String key) {
+		int index = indexOf(schema.getId(key));
+		if (index < 0)
+			return;
+		setPresent(ids[index], false);
+		size--;
+		System.arraycopy(ids, index + 1, ids, index, size - index);
+		System.arraycopy(stats, index + 1, stats, index, size - index);
+		stats[size] = null;
+		keysChanged();
 	}
 	
 	// Put a stat in this, adding the value to the old value if there is one.
 	public void addPut(String key, Stat value) {
-		Stat oldValue = stats.get(key);
-		if (oldValue == null) {
-			stats.put(key, value.copy());
-		}
-		else {
-			oldValue.merge(value);
-		}
+		addPut(key, value, 1);
+	}
+	
+	// Put count copies of a stat in this, adding them to the old value if there is one.
+	public void addPut(String key, Stat value, int count) {
+		if (count < 1)
+			throw new IllegalArgumentException("A stat can only be put a positive number of times.");
+		int id = schema.intern(key);
+		int index = indexOf(id);
+		if (index >= 0)
+			stats[index].merge(value, count);
+		else
+			insert(-(Arrays.binarySearch(ids, 0, size, id) + 1), id, copyOf(value, count));
 	}
 	
 	// Add the like values of a StatMap to this one.
 	public void addMap(StatMap other) {
-		for (Map.Entry<String, Stat> entry : stats.entrySet()) {
-			Stat otherValue = other.stats.get(entry.getKey());
-			if (otherValue != null) {
-				entry.getValue().merge(otherValue);
+		if (other.schema != schema) {
+			for (int i = 0; i < size; i++) {
+				Stat otherValue = other.get(schema.getKey(ids[i]));
+				if (otherValue != null)
+					stats[i].merge(otherValue);
 			}
+			return;
+		}
+		
+		// Walk both arrays of ids together.
+		for (int i = 0, q = 0; i < size && q < other.size; ) {
+			if (ids[i] < other.ids[q])
+				i++;
+			else if (ids[i] > other.ids[q])
+				q++;
+			else
+				stats[i++].merge(other.stats[q++]);
 		}
 	}
 	
 	// Add all the values of another StatMap to this one.
 	public void mergeMap(StatMap other) {
-		for (Map.Entry<String, Stat> otherEntry : other.stats.entrySet()) {
-			addPut(otherEntry.getKey(), otherEntry.getValue());
+		mergeMap(other, 1);
+	}
+	
+	// Add all the values of count copies of another StatMap to this one. This takes the same time for any count.
+	public void mergeMap(StatMap other, int count) {
+		if (count < 1)
+			return;
+		if (other.schema != schema) {
+			for (int q = 0; q < other.size; q++)
+				addPut(other.schema.getKey(other.ids[q]), other.stats[q], count);
+			return;
+		}
+		
+		// Count the keys that are new to this.
+		int numNew = 0;
+		for (int q = 0; q < other.size; q++) {
+			if (!isPresent(other.ids[q]))
+				numNew++;
 		}
+		
+		// If there are none, merge in place.
+		if (numNew == 0) {
+			for (int i = 0, q = 0; q < other.size; i++) {
+				if (ids[i] == other.ids[q])
+					stats[i].merge(other.stats[q++], count);
+			}
+			return;
+		}
+		
+		// Otherwise, merge both arrays of ids from the back, so that nothing is overwritten before it is moved.
+		int newSize = size + numNew;
+		ensureCapacity(newSize);
+		int i = size - 1, q = other.size - 1, n = newSize - 1;
+		while (q >= 0) {
+			if (i >= 0 && ids[i] > other.ids[q]) {
+				ids[n] = ids[i];
+				stats[n--] = stats[i--];
+			}
+			else if (i < 0 || ids[i] < other.ids[q]) {
+				ids[n] = other.ids[q];
+				stats[n--] = copyOf(other.stats[q], count);
+				setPresent(other.ids[q--], true);
+			}
+			else {
+				stats[i].merge(other.stats[q--], count);
+				ids[n] = ids[i];
+				stats[n--] = stats[i--];
+			}
+		}
+		size = newSize;
+		keysChanged();
+	}
+	
+	// Partially evaluate every expression in this against the evaluator's known variables.
+	public void specializeExpressions(PartialEvaluator evaluator) {
+		for (int i = 0; i < size; i++)
+			stats[i].specializeExpression(evaluator);
+	}
+	
+	// Get the indices of the stats in key order.
+	private int[] getNameOrder() {
+		if (!hasIds(nameOrderIds)) {
+			Integer[] order = new Integer[size];
+			for (int i = 0; i < size; i++)
+				order[i] = i;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer i1, Integer i2) {
+					return schema.getKey(ids[i1]).compareTo(schema.getKey(ids[i2]));
+				}
+			});
+			nameOrder = new int[size];
+			for (int i = 0; i < size; i++)
+				nameOrder[i] = order[i];
+			nameOrderIds = Arrays.copyOf(ids, size);
+		}
+		return nameOrder;
 	}
 	
-	// Get the display strings.
+	// Get the display string of the stat at an index, making it only if the stat has changed.
+	private String getLine(int index) {
+		if (lines == null || lines.length < ids.length) {
+			lines = new String[ids.length];
+			lineIds = new int[ids.length];
+			lineVersions = new long[ids.length];
+		}
+		long version = stats[index].getVersion();
+		if (lines[index] == null || lineIds[index] != ids[index] || lineVersions[index] != version) {
+			lines[index] = schema.getKey(ids[index]) + ": " + stats[index].toString();
+			lineIds[index] = ids[index];
+			lineVersions[index] = version;
+		}
+		return lines[index];
+	}
+	
+	// Get the display strings. Only the stats that have changed since the last call are displayed again.
+	// The returned array can be changed.
 	public String[] toDisplayStrings() {
-		String[] out = new String[stats.size()];
-		int i = 0;
-		for (Map.Entry<String, Stat> entry : stats.entrySet()) {
-			out[i] = entry.getKey() + ": " + entry.getValue().toString();
-			i++;
+		long version = getVersion();
+		if (displayStrings == null || displayStringsVersion != version) {
+			int[] order = getNameOrder();
+			String[] out = new String[size];
+			for (int i = 0; i < size; i++)
+				out[i] = getLine(order[i]);
+			displayStrings = out;
+			displayStringsVersion = version;
 		}
-		return out;
+		return displayStrings.clone();
 	}
 	
 	// Get the map as a single display string.
 	public String toDisplayString() {
-		StringBuilder out = new StringBuilder();
-		for (Map.Entry<String, Stat> entry : stats.entrySet()) {
-			out.append(entry.getKey());
-			out.append(": ");
-			out.append(entry.getValue().toString());
-			out.append('\n');
+		long version = getVersion();
+		if (displayString == null || displayStringVersion != version) {
+			StringBuilder out = new StringBuilder();
+			for (int index : getNameOrder()) {
+				out.append(getLine(index));
+				out.append('\n');
+			}
+			if (out.length() > 0)
+				out.deleteCharAt(out.length() - 1);
+			displayString = out.toString();
+			displayStringVersion = version;
 		}
-		if (out.length() > 0)
-			out.deleteCharAt(out.length() - 1);
-		return out.toString();
+		return displayString;
 	}
 	
 	// Get the stat for a key.
 	public Stat get(String key) {
-		return stats.get(key);
+		int index = indexOf(schema.getId(key));
+		return (index >= 0)? stats[index] : null;
+	}
+	
+	// Get the keys of this StatMap, in order. The set can't be modified.
+	public Set<String> keySet() {
+		int[] order = getNameOrder();
+		LinkedHashSet<String> out = new LinkedHashSet<String>(size * 2);
+		for (int index : order)
+			out.add(schema.getKey(ids[index]));
+		return Collections.unmodifiableSet(out);
 	}
 	
 	// Return a copy of the tree in this StatMap. While changing the stats will affect this StatMap (it isn't a deep copy),
 	// changing the returned tree will not affect this StatMap.
 	public TreeMap<String, Stat> copyTree() {
 		TreeMap<String, Stat> out = new TreeMap<String, Stat>();
-		out.putAll(stats);
+		for (int i = 0; i < size; i++)
+			out.put(schema.getKey(ids[i]), stats[i]);
 		return out;
 	}
 
+	// Make sure the slot layout matches the keys. Each stat's index is its slot, so the layout only has to be
+	// rebuilt when the keys have changed, in which case every expression has to be bound again.
+	private void rebuildLayout() {
+		layoutDirty = false;
+		
+		// See if the keys have actually changed.
+		if (hasIds(layoutIds))
+			return;
+		
+		layoutIds = Arrays.copyOf(ids, size);
+		boundExpressions = new Expression[size];
+		slotBindings = new int[size][];
+		slotVariables = new String[size][];
+		context = new EvaluationContext(size + 1);
+		planDirty = true;
+	}
+	
+	// Check if two bindings depend on the same slots.
+	private static boolean sameDependencies(int[] bindings1, int[] bindings2) {
+		if (bindings1 == null || bindings2 == null)
+			return bindings1 == bindings2;
+		if (bindings1.length != bindings2.length)
+			return false;
+		for (int i = 0; i < bindings1.length; i++) {
+			int q = 0;
+			while (q < bindings2.length && bindings2[q] != bindings1[i])
+				q++;
+			if (q == bindings2.length)
+				return false;
+		}
+		return true;
+	}
+	
+	// Bind a slot's expression if it has changed since it was last bound, and refresh the slot's value
+	// if it doesn't have a variable expression. Marks the plan dirty if the slot's dependencies changed.
+	// Merging makes a new expression object every time, so bindings are kept against the variable names
+	// they were made for, and an expression with the same variables in the same layout reuses them.
+	private void bindSlot(int slot) {
+		Expression exp = stats[slot].getExpression();
+		if (boundExpressions[slot] != exp) {
+			int[] bindings = null;
+			String[] variables = null;
+			if (exp instanceof VariableExpression) {
+				variables = ((VariableExpression)exp).getProgram().getVariables();
+				if (Arrays.equals(variables, slotVariables[slot]))
+					bindings = slotBindings[slot];
+				else {
+					// Bind the variables to ids, and then turn the ids into slots.
+					bindings = ((VariableExpression)exp).bind(schema.getIdMap(), -1);
+					for (int i = 0; i < bindings.length; i++) {
+						int index = indexOf(bindings[i]);
+						bindings[i] = (index >= 0)? index : size;
+					}
+				}
+			}
+			if (!sameDependencies(bindings, slotBindings[slot]))
+				planDirty = true;
+			slotBindings[slot] = bindings;
+			slotVariables[slot] = variables;
+			boundExpressions[slot] = exp;
+		}
+		if (exp == null)
+			context.setValue(slot, 0);
+		else if (exp instanceof ConstantExpression)
+			context.setValue(slot, ((ConstantExpression)exp).getValue());
+	}
+	
+	// Build the dependency graph of the variable expressions and sort it topologically.
+	private void rebuildPlan() {
+		int numSlots = size;
+		
+		// Count the dependents of each slot and the variable dependencies of each variable slot.
+		// Only variable slots need ordering, as everything else already has its value, but every slot
+		// keeps its dependents so that changes can be propagated.
+		int[] numDependencies = new int[numSlots];
+		dependentsStart = new int[numSlots + 1];
+		int numVarSlots = 0;
+		for (int slot = 0; slot < numSlots; slot++) {
+			int[] bindings = slotBindings[slot];
+			if (bindings == null)
+				continue;
+			numVarSlots++;
+			for (int dependency : bindings) {
+				if (dependency < numSlots) {
+					if (slotBindings[dependency] != null)
+						numDependencies[slot]++;
+					dependentsStart[dependency + 1]++;
+				}
+			}
+		}
+		
+		// Fill in the dependents.
+		for (int slot = 0; slot < numSlots; slot++)
+			dependentsStart[slot + 1] += dependentsStart[slot];
+		dependents = new int[dependentsStart[numSlots]];
+		int[] fill = new int[numSlots];
+		for (int slot = 0; slot < numSlots; slot++) {
+			int[] bindings = slotBindings[slot];
+			if (bindings == null)
+				continue;
+			for (int dependency : bindings) {
+				if (dependency < numSlots)
+					dependents[dependentsStart[dependency] + fill[dependency]++] = slot;
+			}
+		}
+		
+		// Sort the graph with Kahn's algorithm, using evalOrder as the queue.
+		evalOrder = new int[numVarSlots];
+		int head = 0, tail = 0;
+		for (int slot = 0; slot < numSlots; slot++) {
+			if (slotBindings[slot] != null && numDependencies[slot] == 0)
+				evalOrder[tail++] = slot;
+		}
+		while (head < tail) {
+			int slot = evalOrder[head++];
+			for (int i = dependentsStart[slot]; i < dependentsStart[slot + 1]; i++) {
+				int dependent = dependents[i];
+				if (--numDependencies[dependent] == 0)
+					evalOrder[tail++] = dependent;
+			}
+		}
+		
+		// Anything left over is in or behind a cycle. Those are evaluated last, in slot order,
+		// using whatever values their dependencies had from the previous evaluation.
+		cyclicKeys = new String[numVarSlots - tail];
+		for (int c = 0, slot = 0; slot < numSlots; slot++) {
+			if (slotBindings[slot] != null && numDependencies[slot] > 0) {
+				cyclicKeys[c++] = schema.getKey(ids[slot]);
+				evalOrder[tail++] = slot;
+			}
+		}
+		Arrays.sort(cyclicKeys);
+		
+		planDirty = false;
+	}
+
 	// Evaluate the expressions in the stat map.
 	public void evaluateExpressions() {
-		// Sort the stats by their order of operations.
-		Collection<Stat> statCollection = stats.values();
-		Stat[] statVals = statCollection.toArray(new Stat[statCollection.size()]);
-		Arrays.sort(statVals, new StatEvalOrderComparator());
+		if (layoutDirty)
+			rebuildLayout();
+		for (int slot = 0; slot < size; slot++)
+			bindSlot(slot);
+		if (planDirty)
+			rebuildPlan();
 		
-		// Make a map of the expressions.
-		TreeMap<String, Expression> statExpressions = new TreeMap<String, Expression>();
-		for (Map.Entry<String, Stat> entry : stats.entrySet()) {
-			Expression exp = entry.getValue().getExpression();
-			if (exp != null)
-				statExpressions.put(entry.getKey(), exp);
+		// Evaluate the variable stats in dependency order.
+		for (int i = 0; i < evalOrder.length; i++) {
+			int slot = evalOrder[i];
+			VariableExpression varExp = (VariableExpression)boundExpressions[slot];
+			float value = varExp.evaluate(context, slotBindings[slot]);
+			context.setValue(slot, value);
+			stats[slot].setValue(value);
+		}
+	}
+	
+	// Evaluate only the expressions of the given keys and the expressions that transitively depend on them.
+	// changedKeys must include every key whose stat has changed since the last evaluation. If the key set
+	// itself has changed, everything is evaluated.
+	public void evaluateExpressions(Collection<String> changedKeys) {
+		if (layoutDirty || layoutIds == null) {
+			evaluateExpressions();
+			return;
 		}
 		
-		// Evaluate all the stats.
-		for (Stat s : statVals) {
-			Expression exp = s.getExpression();
-			if (exp instanceof VariableExpression) {
-				((VariableExpression)exp).evaluate(statExpressions);
+		// Bind the changed slots and mark them dirty.
+		int numSlots = size;
+		boolean[] dirty = new boolean[numSlots];
+		int[] dirtyQueue = new int[numSlots];
+		int head = 0, tail = 0;
+		for (String key : changedKeys) {
+			int slot = indexOf(schema.getId(key));
+			if (slot >= 0 && !dirty[slot]) {
+				bindSlot(slot);
+				dirty[slot] = true;
+				dirtyQueue[tail++] = slot;
+			}
+		}
+		if (planDirty)
+			rebuildPlan();
+		
+		// Propagate the dirtiness to the dependents.
+		while (head < tail) {
+			int slot = dirtyQueue[head++];
+			for (int i = dependentsStart[slot]; i < dependentsStart[slot + 1]; i++) {
+				int dependent = dependents[i];
+				if (!dirty[dependent]) {
+					dirty[dependent] = true;
+					dirtyQueue[tail++] = dependent;
+				}
 			}
 		}
+		
+		// Evaluate the dirty variable stats in dependency order.
+		for (int i = 0; i < evalOrder.length; i++) {
+			int slot = evalOrder[i];
+			if (dirty[slot]) {
+				VariableExpression varExp = (VariableExpression)boundExpressions[slot];
+				float value = varExp.evaluate(context, slotBindings[slot]);
+				context.setValue(slot, value);
+				stats[slot].setValue(value);
+			}
+		}
+	}
+	
+	// Get the keys of the stats whose expressions are in, or depend on, a dependency cycle
+	// as of the last call to evaluateExpressions().
+	public String[] getCyclicKeys() {
+		return (cyclicKeys != null)? cyclicKeys : new String[0];
 	}
 	
 	public int size() {
-		return stats.size();
+		return size;
 	}
 
 }
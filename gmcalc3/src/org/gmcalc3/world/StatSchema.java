@@ -0,0 +1,56 @@
+// The stat keys of a world, each interned to a dense int id. Ids are given out in the order keys are first seen
+// and never change, so stat maps can store their stats by id and merge by walking arrays of ids instead of comparing
+// strings. Keys can be interned from several loading threads at once.
+
+package org.gmcalc3.world;
+
+import java.util.Map;
+
+public final class StatSchema {
+
+	// The schema used by stat maps that aren't made for a particular world.
+	private static final StatSchema DEFAULT = new StatSchema();
+
+	private final Interner keys;	// The keys and their ids.
+
+	// Constructor.
+	public StatSchema() {
+		keys = new Interner();
+	}
+
+	// Get the schema used by stat maps that aren't made for a particular world.
+	public static StatSchema getDefault() {
+		return DEFAULT;
+	}
+
+	// Get the schema of a world, or the default schema if there is no world.
+	public static StatSchema of(World world) {
+		return (world != null)? world.getStatSchema() : DEFAULT;
+	}
+
+	// Get the id of a key, giving it one if it doesn't have one yet.
+	public int intern(String key) {
+		return keys.intern(key);
+	}
+
+	// Get the id of a key, or -1 if it doesn't have one.
+	public int getId(String key) {
+		return keys.getId(key);
+	}
+
+	// Get the key with an id.
+	public String getKey(int id) {
+		return keys.get(id);
+	}
+
+	// Get the number of keys.
+	public int size() {
+		return keys.size();
+	}
+
+	// Get the id of each key. The map must not be changed.
+	Map<String, Integer> getIdMap() {
+		return keys.getIdMap();
+	}
+
+}
@@ -0,0 +1,94 @@
+// An inverted index from tags to the components of a map that have them. Each tag has a bitmap of the positions
+// of the components that have it, so the components that meet a requirement are the AND of the bitmaps of its
+// tags. The result for each requirement is remembered, since the same requirements are asked for over and over.
+
+package org.gmcalc3.world;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+final class TagIndex {
+
+	private static final Component[] EMPTY_COMPONENTS = new Component[0];
+
+	private final Interner tagIds;				// The ids of the tags in the world.
+	private final Component[] components;			// The components, in the order of the map.
+	private final ArrayList<long[]> postings;		// The bitmap of the components with each tag, by tag id.
+	private final HashMap<String, Component[]> results; // The components that meet each requirement that has been asked for.
+
+	// Constructor.
+	TagIndex(Map<String, ? extends Component> map, Interner tagIds) {
+		this.tagIds = tagIds;
+		components = map.values().toArray(new Component[map.size()]);
+		postings = new ArrayList<long[]>();
+		int numWords = (components.length + 63) >>> 6;
+		for (int i = 0; i < components.length; i++) {
+			long[] tagBits = components[i].getTagBits(tagIds);
+			for (int word = 0; word < tagBits.length; word++) {
+				for (long bits = tagBits[word]; bits != 0; bits &= bits - 1) {
+					int tag = (word << 6) + Long.numberOfTrailingZeros(bits);
+					while (postings.size() <= tag)
+						postings.add(null);
+					long[] posting = postings.get(tag);
+					if (posting == null) {
+						posting = new long[numWords];
+						postings.set(tag, posting);
+					}
+					posting[i >>> 6] |= 1L << i;
+				}
+			}
+		}
+		results = new HashMap<String, Component[]>();
+	}
+
+	// Get the components that have every tag in a requirement. The returned array is shared and must not be changed.
+	synchronized Component[] getMatching(String[] requirement) {
+		// Requirements with the same tags in any order have the same result.
+		String[] sorted = requirement.clone();
+		Arrays.sort(sorted);
+		StringBuilder keyBuilder = new StringBuilder();
+		for (String tag : sorted)
+			keyBuilder.append(tag).append('\0');
+		String key = keyBuilder.toString();
+		Component[] out = results.get(key);
+		if (out == null) {
+			out = findMatching(sorted);
+			results.put(key, out);
+		}
+		return out;
+	}
+
+	// AND the bitmaps of the tags of a requirement together and get the components that are left.
+	private Component[] findMatching(String[] requirement) {
+		if (requirement.length == 0)
+			return components.clone();
+
+		long[] matches = null;
+		for (String tag : requirement) {
+			int id = tagIds.getId(tag);
+			long[] posting = (id >= 0 && id < postings.size())? postings.get(id) : null;
+			if (posting == null)
+				return EMPTY_COMPONENTS;
+			if (matches == null) {
+				matches = posting.clone();
+			}
+			else {
+				for (int word = 0; word < matches.length; word++)
+					matches[word] &= posting[word];
+			}
+		}
+
+		int count = 0;
+		for (long bits : matches)
+			count += Long.bitCount(bits);
+		Component[] out = new Component[count];
+		for (int n = 0, word = 0; word < matches.length; word++) {
+			for (long bits = matches[word]; bits != 0; bits &= bits - 1)
+				out[n++] = components[(word << 6) + Long.numberOfTrailingZeros(bits)];
+		}
+		return out;
+	}
+
+}
@@ -7,14 +7,19 @@
 
 package org.gmcalc3.world;
 
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Arrays;
 
 import org.gmcalc3.DeviceWorldsActivity;
 import org.gmcalc3.TableActivity;
+import org.hafermath.expression.ConstantExpression;
+import org.hafermath.expression.Expression;
 import org.hafermath.expression.ExpressionBuilder;
+import org.hafermath.expression.PartialEvaluator;
+import org.hafermath.expression.VariableExpression;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -41,12 +46,18 @@ public class World implements Parcelable {
 	
 	// Instance fields.
 	private final byte deviceWorld;										// If 0, the world is local to the device. Otherwise, the world belongs to the table.
+	private final StatSchema statSchema;								// The ids of the stat keys in this world.
+	private final ItemCache itemCache;									// The shared items made from the components.
+	private final Interner tagIds;									// The ids of the component tags in this world.
+	private TagIndex prefixIndex;										// The prefixes by tag. Null until it is needed.
+	private TagIndex materialIndex;										// The materials by tag. Null until it is needed.
 	private String fileName;											// The name of the world in the file system.
 	private String name;												// The name of the world.
 	private int[] colorRarities;										// The rarity colors that are displayed in this world.
 	private int[] colorValues;
 	private LinkedHashMap<String, String[]> characterStatCategories;	// The categories stats are sorted into in PlayerTabs.
 	private StatMap characterBaseStats;									// The player's base stats.
+	private PartialEvaluator fixedStatEvaluator;						// Fills in the stats that never change. May be null.
 	private Map<String, Component> prefixes;							// The prefixes.
 	private Map<String, Component> materials;							// The materials.
 	private Map<String, ItemBase> itemBases;							// The itemBases.
@@ -56,6 +67,9 @@ public class World implements Parcelable {
 	public World(byte deviceWorld, String fileName, JSONObject ruleValues, ExpressionBuilder expBuilder) throws JSONException {
 		this.deviceWorld = deviceWorld;
 		this.fileName = fileName;
+		statSchema = new StatSchema();
+		itemCache = new ItemCache(this);
+		tagIds = new Interner();
 		setRulesToDefault();
 		setRules(ruleValues, expBuilder);
 	}
@@ -67,6 +81,7 @@ public class World implements Parcelable {
 		colorValues = DEFAULT_COLOR_VALUES;
 		characterStatCategories = new LinkedHashMap<String, String[]>();
 		characterBaseStats = null;
+		fixedStatEvaluator = null;
 	}
 	
 	// Set the rules using loaded data.
@@ -123,7 +138,7 @@ public class World implements Parcelable {
 		
 		// Get the character base stats.
 		JSONObject rawBaseStats = rawRules.getJSONObject(CHARACTERBASESTATS_KEY);
-		characterBaseStats = new StatMap(rawBaseStats, expBuilder);
+		characterBaseStats = new StatMap(statSchema, rawBaseStats, expBuilder);
 	}
 	
 	// Get the file name.
@@ -145,11 +160,105 @@ public class World implements Parcelable {
 		return characterStatCategories;
 	}
 	
+	// Get the schema the stat keys of this world are interned in.
+	public StatSchema getStatSchema() {
+		return statSchema;
+	}
+	
 	// Get the character base stats.
 	public StatMap getCharacterBaseStats() {
 		return characterBaseStats;
 	}
 	
+	// Get the partial evaluator that fills in the stats that never change, or null if specializeStats()
+	// hasn't been called.
+	public PartialEvaluator getFixedStatEvaluator() {
+		return fixedStatEvaluator;
+	}
+	
+	// Helper method to add the stat keys of the components in a map to a set.
+	private static void addStatKeys(Map<String, ? extends Component> map, HashSet<String> out) {
+		for (Component c : map.values())
+			out.addAll(c.getStatMap().keySet());
+	}
+	
+	// Helper method to add the variables of the expressions in a stat map that aren't in keys to a map as 0.
+	private static void addUndefinedVariables(StatMap statMap, HashSet<String> keys, HashMap<String, Float> out) {
+		for (String key : statMap.keySet()) {
+			Expression exp = statMap.get(key).getExpression();
+			if (!(exp instanceof VariableExpression))
+				continue;
+			for (String variable : ((VariableExpression)exp).getProgram().getVariables()) {
+				if (!keys.contains(variable))
+					out.put(variable, 0f);
+			}
+		}
+	}
+	
+	// Partially evaluate the stats of the base and of every component against the stats that are the same for
+	// every character. Characters only get stats from the base stats and their equipped items, so a base stat
+	// that no component has can only ever have its base value, and a variable that nothing defines is always 0.
+	// This must be called after the components are loaded and before any items are made from them.
+	public void specializeStats() {
+		if (characterBaseStats == null)
+			return;
+		
+		// Find the keys that components can change.
+		HashSet<String> componentKeys = new HashSet<String>();
+		addStatKeys(prefixes, componentKeys);
+		addStatKeys(materials, componentKeys);
+		addStatKeys(itemBases, componentKeys);
+		HashSet<String> allKeys = new HashSet<String>(componentKeys);
+		allKeys.addAll(characterBaseStats.keySet());
+		
+		// Find the variables that nothing defines.
+		HashMap<String, Float> fixedValues = new HashMap<String, Float>();
+		addUndefinedVariables(characterBaseStats, allKeys, fixedValues);
+		for (Component c : prefixes.values())
+			addUndefinedVariables(c.getStatMap(), allKeys, fixedValues);
+		for (Component c : materials.values())
+			addUndefinedVariables(c.getStatMap(), allKeys, fixedValues);
+		for (Component c : itemBases.values())
+			addUndefinedVariables(c.getStatMap(), allKeys, fixedValues);
+		
+		// Find the values of the base stats that components can't change. A base stat's value is fixed once
+		// every variable it depends on is fixed, so keep folding until nothing more becomes fixed.
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			PartialEvaluator evaluator = new PartialEvaluator(fixedValues);
+			for (String key : characterBaseStats.keySet()) {
+				if (componentKeys.contains(key) || fixedValues.containsKey(key))
+					continue;
+				Expression exp = evaluator.specialize(characterBaseStats.get(key).getExpression());
+				if (exp == null)
+					fixedValues.put(key, 0f);
+				else if (exp instanceof ConstantExpression)
+					fixedValues.put(key, ((ConstantExpression)exp).getValue());
+				else
+					continue;
+				changed = true;
+			}
+		}
+		
+		// Specialize the stats.
+		fixedStatEvaluator = new PartialEvaluator(fixedValues);
+		characterBaseStats.specializeExpressions(fixedStatEvaluator);
+		for (Component c : prefixes.values())
+			c.getStatMap().specializeExpressions(fixedStatEvaluator);
+		for (Component c : materials.values())
+			c.getStatMap().specializeExpressions(fixedStatEvaluator);
+		for (Component c : itemBases.values())
+			c.getStatMap().specializeExpressions(fixedStatEvaluator);
+		itemCache.clear();
+	}
+	
+	// Get the shared item made from an item base, prefixes, and materials. Items with the same composition are
+	// only made once, and the returned item can't be changed.
+	public Item getItem(ItemBase itemBase, Component[] prefixes, Component[] materials) {
+		return itemCache.get(itemBase, prefixes, materials);
+	}
+	
 	// Get a prefix.
 	public Component getPrefix(String prefixName) {
 		return prefixes.get(prefixName);
@@ -200,25 +309,31 @@ public class World implements Parcelable {
 		return android.R.color.black;
 	}
 	
-	// Helper method to get components matching from a map.
-	private Component[] getComponentsMatching(String[] requirement, Map<String, Component> map) {
-		ArrayList<Component> out = new ArrayList<Component>();
-		for (Map.Entry<String, Component> entry : map.entrySet()) {
-			Component c = entry.getValue();
-			if (c.hasTags(requirement))
-				out.add(c);
+	// Get the schema the component tags of this world are interned in.
+	Interner getTagIds() {
+		return tagIds;
+	}
+	
+	// Drop the requirements the item bases have resolved against the components, since they have changed.
+	private void clearItemBaseCompatibility() {
+		if (itemBases != null) {
+			for (ItemBase itemBase : itemBases.values())
+				itemBase.clearCompatibility();
 		}
-		return out.toArray(new Component[out.size()]);
 	}
 	
-	// Get the prefixes matching a tag requirement.
-	public Component[] getPrefixesMatching(String[] requirement) {
-		return getComponentsMatching(requirement, prefixes);
+	// Get the prefixes matching a tag requirement. The returned array is shared and must not be changed.
+	public synchronized Component[] getPrefixesMatching(String[] requirement) {
+		if (prefixIndex == null)
+			prefixIndex = new TagIndex(prefixes, tagIds);
+		return prefixIndex.getMatching(requirement);
 	}
 	
-	// Get the materials matching a tag requirement.
-	public Component[] getMaterialsMatching(String[] requirement) {
-		return getComponentsMatching(requirement, materials);
+	// Get the materials matching a tag requirement. The returned array is shared and must not be changed.
+	public synchronized Component[] getMaterialsMatching(String[] requirement) {
+		if (materialIndex == null)
+			materialIndex = new TagIndex(materials, tagIds);
+		return materialIndex.getMatching(requirement);
 	}
 	
 	// Get the number of prefixes.
@@ -244,16 +359,27 @@ public class World implements Parcelable {
 	// Set the prefix map.
 	public void setPrefixMap(Map<String, Component> p) {
 		prefixes = p;
+		itemCache.clear();
+		synchronized (this) {
+			prefixIndex = null;
+		}
+		clearItemBaseCompatibility();
 	}
 	
 	// Set the material map.
 	public void setMaterialMap(Map<String, Component> m) {
 		materials = m;
+		itemCache.clear();
+		synchronized (this) {
+			materialIndex = null;
+		}
+		clearItemBaseCompatibility();
 	}
 	
 	// Set the item base map.
 	public void setItemBaseMap(Map<String, ItemBase> i) {
 		itemBases = i;
+		itemCache.clear();
 	}
 
 	// Set the character map.
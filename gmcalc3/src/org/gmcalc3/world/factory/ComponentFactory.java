@@ -12,7 +12,11 @@ public class ComponentFactory extends JSONFactory<Component> {
 	private World world;
 	
 	public ComponentFactory() {
-		expBuilder = new ExpressionBuilder();
+		this(new ExpressionBuilder());
+	}
+	
+	public ComponentFactory(ExpressionBuilder expBuilder) {
+		this.expBuilder = expBuilder;
 	}
 	
 	public void setWorld(World w) {
@@ -12,7 +12,11 @@ public class ItemBaseFactory extends JSONFactory<ItemBase> {
 	private World world;
 	
 	public ItemBaseFactory() {
-		expBuilder = new ExpressionBuilder();
+		this(new ExpressionBuilder());
+	}
+	
+	public ItemBaseFactory(ExpressionBuilder expBuilder) {
+		this.expBuilder = expBuilder;
 	}
 	
 	public void setWorld(World w) {
@@ -11,6 +11,7 @@ import org.gmcalc3.world.ItemBase;
 import org.gmcalc3.world.World;
 import org.gmcalc3.world.Character;
 import org.hafermath.expression.ExpressionBuilder;
+import org.hafermath.expression.ExpressionCache;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
@@ -38,11 +39,12 @@ public class WorldFactory implements Factory<World> {
 	private ExpressionBuilder expressionBuilder;
 	
 	public WorldFactory() {
-		prefixFactory = new ComponentFactory();
-		materialFactory = new ComponentFactory();
-		itemBaseFactory = new ItemBaseFactory();
+		// The factory threads share one builder, so the same formula in different files is only parsed once.
+		expressionBuilder = new ExpressionBuilder(new ExpressionCache());
+		prefixFactory = new ComponentFactory(expressionBuilder);
+		materialFactory = new ComponentFactory(expressionBuilder);
+		itemBaseFactory = new ItemBaseFactory(expressionBuilder);
 		characterFactory = new CharacterFactory();
-		expressionBuilder = new ExpressionBuilder();
 	}
 
 	@Override
@@ -154,6 +156,9 @@ public class WorldFactory implements Factory<World> {
 		world.setMaterialMap(materialThread.getLoadedValues());
 		world.setItemBaseMap(itemBaseThread.getLoadedValues());
 		
+		// Fill in the stats that are the same for every character before any items are made.
+		world.specializeStats();
+		
 		// Load the characters.
 		characterFactory.setWorld(world);
 		Map<String, Character> characters = runFactory(characterFactory, characterDir);
@@ -0,0 +1,78 @@
+// A table for drawing indices at random in proportion to their weights in constant time, built with Vose's
+// alias method. Each column of the table holds an index and, below a threshold, the index of another column
+// that fills it up to an even height, so a draw is one uniform column and one uniform threshold test.
+
+package org.gmcalc3.world.loot;
+
+import java.util.Random;
+
+final class AliasTable {
+
+	private final double[] probabilities;	// The chance a draw in each column keeps the column's index.
+	private final int[] aliases;			// The index a draw in each column gives otherwise.
+
+	// Constructor. The weights must not be negative, and at least one must be positive.
+	AliasTable(double[] weights) {
+		int n = weights.length;
+		double total = 0;
+		for (double w : weights) {
+			if (w < 0 || Double.isNaN(w) || Double.isInfinite(w))
+				throw new IllegalArgumentException("Invalid weight: " + w);
+			total += w;
+		}
+		if (n == 0 || total <= 0)
+			throw new IllegalArgumentException("An alias table needs a positive weight.");
+
+		// Scale the weights so that the average is 1, and split the columns into those below and above it.
+		probabilities = new double[n];
+		aliases = new int[n];
+		double[] scaled = new double[n];
+		int[] small = new int[n];
+		int[] large = new int[n];
+		int numSmall = 0, numLarge = 0;
+		for (int i = 0; i < n; i++) {
+			scaled[i] = weights[i] * n / total;
+			if (scaled[i] < 1)
+				small[numSmall++] = i;
+			else
+				large[numLarge++] = i;
+		}
+
+		// Fill each small column with part of a large one.
+		while (numSmall > 0 && numLarge > 0) {
+			int s = small[--numSmall];
+			int l = large[--numLarge];
+			probabilities[s] = scaled[s];
+			aliases[s] = l;
+			scaled[l] = (scaled[l] + scaled[s]) - 1;
+			if (scaled[l] < 1)
+				small[numSmall++] = l;
+			else
+				large[numLarge++] = l;
+		}
+
+		// Whatever is left is full up to rounding error.
+		while (numLarge > 0) {
+			int l = large[--numLarge];
+			probabilities[l] = 1;
+			aliases[l] = l;
+		}
+		while (numSmall > 0) {
+			int s = small[--numSmall];
+			probabilities[s] = 1;
+			aliases[s] = s;
+		}
+	}
+
+	// Get the number of indices in the table.
+	int size() {
+		return probabilities.length;
+	}
+
+	// Draw an index.
+	int sample(Random random) {
+		int column = random.nextInt(probabilities.length);
+		return (random.nextDouble() < probabilities[column])? column : aliases[column];
+	}
+
+}
@@ -0,0 +1,282 @@
+// Rolls random items from the components of a world. Item bases, the prefixes each item base can take, and the
+// materials for each of its slots are drawn from alias tables weighted by rarity through a WeightCurve, so each
+// draw takes constant time no matter how many components the world has.
+//
+// A draw fills in a Roll, which holds the components that were drawn and can be refilled by the next draw, so
+// rolling for analysis allocates nothing. Rolls are turned into items on request. Those items are not shared
+// through the world's item cache, which would otherwise keep every composition ever rolled.
+//
+// The tables are built from the world as it is when they are first needed. If the world's components are
+// reloaded, make a new generator. A generator can be used from many threads at once as long as each thread
+// has its own Random.
+
+package org.gmcalc3.world.loot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.gmcalc3.world.Component;
+import org.gmcalc3.world.Item;
+import org.gmcalc3.world.ItemBase;
+import org.gmcalc3.world.World;
+
+public final class LootGenerator {
+
+	// By default, an item has no prefixes 4 times in 7, one prefix 2 times in 7, and two prefixes 1 time in 7.
+	private static final double[] DEFAULT_PREFIX_COUNT_WEIGHTS = { 4, 2, 1 };
+
+	private static final Component[] EMPTY_COMPONENT_ARRAY = new Component[0];
+
+	// The components of a rolled item. A roll is refilled by every draw made into it.
+	public static final class Roll {
+		private final World world;
+		private ItemBase itemBase;
+		private Component[] prefixes;
+		private int numPrefixes;
+		private Component[] materials;
+		private int numMaterials;
+
+		private Roll(World world) {
+			this.world = world;
+			prefixes = EMPTY_COMPONENT_ARRAY;
+			materials = EMPTY_COMPONENT_ARRAY;
+		}
+
+		public ItemBase getItemBase() {
+			return itemBase;
+		}
+
+		public int getNumPrefixes() {
+			return numPrefixes;
+		}
+
+		public Component getPrefix(int i) {
+			return prefixes[i];
+		}
+
+		public int getNumMaterials() {
+			return numMaterials;
+		}
+
+		public Component getMaterial(int i) {
+			return materials[i];
+		}
+
+		// Make a new item from the components of this roll.
+		public Item toItem() {
+			return new Item(world, Arrays.copyOf(prefixes, numPrefixes), Arrays.copyOf(materials, numMaterials), itemBase);
+		}
+	}
+
+	// Receives the rolls of roll(). It is called from many tasks at once, and each task refills the same Roll for
+	// every draw, so the roll must not be held onto after handle() returns.
+	public interface RollHandler {
+		void handle(int task, Roll roll);
+	}
+
+	// The tables for one item base.
+	private static final class Tables {
+		private final Component[] prefixes;			// The prefixes the item base can take.
+		private final AliasTable prefixTable;		// Draws from prefixes. Null if none of them can be drawn.
+		private final Component[][] materials;		// The materials each slot can take.
+		private final AliasTable[] materialTables;	// Draws from each slot's materials. Null where none can be drawn.
+		private final Component[] defaultMaterials;	// The material of each slot that has no table.
+
+		private Tables(ItemBase itemBase, WeightCurve curve) {
+			prefixes = itemBase.getValidPrefixes();
+			prefixTable = makeTable(prefixes, curve);
+			int numSlots = itemBase.getDefaultMaterials().length;
+			materials = new Component[numSlots][];
+			materialTables = new AliasTable[numSlots];
+			defaultMaterials = new Component[numSlots];
+			for (int i = 0; i < numSlots; i++) {
+				materials[i] = itemBase.getValidMaterials(i);
+				materialTables[i] = makeTable(materials[i], curve);
+				defaultMaterials[i] = itemBase.getDefaultMaterial(i);
+			}
+		}
+	}
+
+	private final World world;							// The world to roll items in.
+	private final WeightCurve curve;					// Turns rarities into weights.
+	private final ItemBase[] itemBases;					// The item bases.
+	private final AliasTable itemBaseTable;				// Draws from itemBases.
+	private final AliasTable prefixCountTable;			// Draws the number of prefixes to try to give an item.
+	private final ConcurrentHashMap<ItemBase, Tables> tables; // The tables of each item base, once they are needed.
+
+	// Constructors. prefixCountWeights[n] is the relative chance of rolling n prefixes for an item.
+	public LootGenerator(World world, WeightCurve curve, double[] prefixCountWeights) {
+		this.world = world;
+		this.curve = curve;
+		Collection<ItemBase> allItemBases = world.getItemBaseMap().values();
+		itemBases = allItemBases.toArray(new ItemBase[allItemBases.size()]);
+		itemBaseTable = makeTable(itemBases, curve);
+		if (itemBaseTable == null)
+			throw new IllegalArgumentException("The world has no item bases that can be rolled.");
+		prefixCountTable = new AliasTable(prefixCountWeights);
+		tables = new ConcurrentHashMap<ItemBase, Tables>();
+	}
+
+	public LootGenerator(World world, WeightCurve curve) {
+		this(world, curve, DEFAULT_PREFIX_COUNT_WEIGHTS);
+	}
+
+	// Make a table that draws components weighted by rarity, or null if none of them have any weight.
+	private static AliasTable makeTable(Component[] components, WeightCurve curve) {
+		double[] weights = new double[components.length];
+		double total = 0;
+		for (int i = 0; i < components.length; i++) {
+			weights[i] = curve.weightOf(components[i].getRarity());
+			total += weights[i];
+		}
+		return (total > 0)? new AliasTable(weights) : null;
+	}
+
+	// Get the tables of an item base, building them if they haven't been yet.
+	private Tables getTables(ItemBase itemBase) {
+		Tables t = tables.get(itemBase);
+		if (t == null) {
+			t = new Tables(itemBase, curve);
+			Tables old = tables.putIfAbsent(itemBase, t);
+			if (old != null)
+				t = old;
+		}
+		return t;
+	}
+
+	// Make an empty roll to draw into.
+	public Roll newRoll() {
+		return new Roll(world);
+	}
+
+	// Roll an item.
+	public Item generate(Random random) {
+		return roll(random, newRoll()).toItem();
+	}
+
+	// Roll an item with a given item base.
+	public Item generate(ItemBase itemBase, Random random) {
+		return roll(itemBase, random, newRoll()).toItem();
+	}
+
+	// Draw the components of an item into a roll, and return the roll.
+	public Roll roll(Random random, Roll out) {
+		return roll(itemBases[itemBaseTable.sample(random)], random, out);
+	}
+
+	// Draw the components of an item with a given item base into a roll, and return the roll. A prefix that is
+	// drawn more than once is only given to the item once.
+	public Roll roll(ItemBase itemBase, Random random, Roll out) {
+		Tables t = getTables(itemBase);
+		out.itemBase = itemBase;
+
+		// Draw the prefixes.
+		int numPrefixes = (t.prefixTable != null)? prefixCountTable.sample(random) : 0;
+		if (out.prefixes.length < numPrefixes)
+			out.prefixes = new Component[Math.max(numPrefixes, prefixCountTable.size() - 1)];
+		int n = 0;
+		for (int i = 0; i < numPrefixes; i++) {
+			Component prefix = t.prefixes[t.prefixTable.sample(random)];
+			boolean repeat = false;
+			for (int q = 0; q < n; q++) {
+				if (out.prefixes[q] == prefix) {
+					repeat = true;
+					break;
+				}
+			}
+			if (!repeat)
+				out.prefixes[n++] = prefix;
+		}
+		out.numPrefixes = n;
+
+		// Draw the materials.
+		int numSlots = t.materials.length;
+		if (out.materials.length < numSlots)
+			out.materials = new Component[numSlots];
+		for (int i = 0; i < numSlots; i++) {
+			AliasTable table = t.materialTables[i];
+			out.materials[i] = (table != null)? t.materials[i][table.sample(random)] : t.defaultMaterials[i];
+		}
+		out.numMaterials = numSlots;
+		return out;
+	}
+
+	// Draw count rolls, split into numTasks tasks on an executor, and give each to a handler. Each task draws into
+	// its own Roll, so this allocates nothing per draw. Task i draws with its own Random seeded from seed and i, so
+	// the same seed, count, and number of tasks always give the same rolls to the same tasks in the same order.
+	public void roll(long count, long seed, ExecutorService executor, int numTasks, final RollHandler handler)
+			throws InterruptedException {
+		numTasks = (int)Math.max(1, Math.min(numTasks, count));
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>(numTasks);
+		for (int task = 0; task < numTasks; task++) {
+			final int index = task;
+			final long first = count * task / numTasks;
+			final long last = count * (task + 1) / numTasks;
+			final Random random = new Random(seed ^ (0x9E3779B97F4A7C15L * (task + 1)));
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					Roll roll = newRoll();
+					for (long i = first; i < last; i++)
+						handler.handle(index, roll(random, roll));
+					return null;
+				}
+			}));
+		}
+		await(futures);
+	}
+
+	// Roll count items, split into numTasks tasks on an executor. Task i rolls with its own Random seeded from seed
+	// and i, so the same seed, count, and number of tasks always give the same items in the same order.
+	public Item[] generate(int count, long seed, ExecutorService executor, int numTasks) throws InterruptedException {
+		numTasks = Math.max(1, Math.min(numTasks, count));
+		final Item[] out = new Item[count];
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>(numTasks);
+		for (int task = 0; task < numTasks; task++) {
+			final int first = (int)((long)count * task / numTasks);
+			final int last = (int)((long)count * (task + 1) / numTasks);
+			final Random random = new Random(seed ^ (0x9E3779B97F4A7C15L * (task + 1)));
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					Roll roll = newRoll();
+					for (int i = first; i < last; i++)
+						out[i] = roll(random, roll).toItem();
+					return null;
+				}
+			}));
+		}
+
+		await(futures);
+		return out;
+	}
+
+	// Wait for the tasks of a parallel roll, cancelling the rest if one fails or the wait is interrupted.
+	private static void await(ArrayList<Future<?>> futures) throws InterruptedException {
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		}
+		catch (ExecutionException e) {
+			for (Future<?> future : futures)
+				future.cancel(true);
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new RuntimeException(cause);
+		}
+		catch (InterruptedException e) {
+			for (Future<?> future : futures)
+				future.cancel(true);
+			throw e;
+		}
+	}
+
+}
@@ -0,0 +1,49 @@
+// A curve that turns the rarity of a component into how likely it is to be rolled relative to the others.
+
+package org.gmcalc3.world.loot;
+
+public abstract class WeightCurve {
+
+	// Every component is as likely as every other.
+	public static final WeightCurve UNIFORM = new WeightCurve() {
+		@Override
+		public double weightOf(int rarity) {
+			return 1;
+		}
+	};
+
+	// A component with rarity r is 1 / (1 + r) as likely as one with rarity 0.
+	public static final WeightCurve INVERSE = new WeightCurve() {
+		@Override
+		public double weightOf(int rarity) {
+			return 1.0 / (1 + Math.max(rarity, 0));
+		}
+	};
+
+	// Get the relative weight of a component with a rarity. Weights must not be negative.
+	public abstract double weightOf(int rarity);
+
+	// Make a curve where each point of rarity multiplies the weight by falloff, eg. with a falloff of 0.5 a
+	// component with rarity 2 is a quarter as likely as one with rarity 0.
+	public static WeightCurve exponential(final double falloff) {
+		if (falloff <= 0)
+			throw new IllegalArgumentException("The falloff must be positive.");
+		return new WeightCurve() {
+			@Override
+			public double weightOf(int rarity) {
+				return Math.pow(falloff, rarity);
+			}
+		};
+	}
+
+	// Make a curve where the weight is (1 + rarity) ^ -exponent, which falls off more gently than an exponential.
+	public static WeightCurve power(final double exponent) {
+		return new WeightCurve() {
+			@Override
+			public double weightOf(int rarity) {
+				return Math.pow(1 + Math.max(rarity, 0), -exponent);
+			}
+		};
+	}
+
+}
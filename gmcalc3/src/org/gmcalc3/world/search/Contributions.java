@@ -0,0 +1,70 @@
+// Helpers for working out what stat maps add to the stats an objective uses. The value of a stat to an objective
+// is the value of its expression plus the mean of its range. A stat map's contribution to a stat is exact when the
+// stat has no variable expression; otherwise it depends on the other stats, so its bounds are unbounded.
+
+package org.gmcalc3.world.search;
+
+import org.gmcalc3.world.Stat;
+import org.gmcalc3.world.StatMap;
+import org.hafermath.expression.ConstantExpression;
+import org.hafermath.expression.EvaluationContext;
+import org.hafermath.expression.Expression;
+import org.hafermath.expression.VariableExpression;
+
+final class Contributions {
+
+	private Contributions() {
+	}
+
+	// Get the stat keys an objective uses, in the order of its variable slots.
+	static String[] keysOf(Expression objective) {
+		if (objective instanceof VariableExpression)
+			return ((VariableExpression)objective).getProgram().getVariables();
+		if (objective instanceof ConstantExpression)
+			return new String[0];
+		throw new IllegalArgumentException("The objective must be a constant or variable expression.");
+	}
+
+	// Get the value of a stat that an objective sees.
+	static float valueOf(Stat stat) {
+		return stat.getValue() + stat.getRangeMean();
+	}
+
+	// Add count times a stat map's contribution to each key to a pair of bounds. If onlyKeysOf isn't null, only
+	// the keys it has are added to, the same way StatMap.addMap() works.
+	static void add(StatMap statMap, int count, String[] keys, StatMap onlyKeysOf, float[] lo, float[] hi) {
+		for (int v = 0; v < keys.length; v++) {
+			if (onlyKeysOf != null && onlyKeysOf.get(keys[v]) == null)
+				continue;
+			Stat stat = statMap.get(keys[v]);
+			if (stat == null)
+				continue;
+			Expression exp = stat.getExpression();
+			if (exp != null && !(exp instanceof ConstantExpression)) {
+				lo[v] = Float.NEGATIVE_INFINITY;
+				hi[v] = Float.POSITIVE_INFINITY;
+			}
+			else {
+				float value = valueOf(stat) * count;
+				lo[v] += value;
+				hi[v] += value;
+			}
+		}
+	}
+
+	// Put the values of the keys in an evaluated stat map into a context, with missing stats as 0.
+	static void load(StatMap statMap, String[] keys, EvaluationContext context) {
+		for (int v = 0; v < keys.length; v++) {
+			Stat stat = statMap.get(keys[v]);
+			context.setValue(v, (stat != null)? valueOf(stat) : 0);
+		}
+	}
+
+	// Evaluate an objective with the values of its keys in a context, where slots[v] == v.
+	static float evaluate(Expression objective, EvaluationContext context, int[] slots) {
+		if (objective instanceof ConstantExpression)
+			return ((ConstantExpression)objective).getValue();
+		return ((VariableExpression)objective).evaluate(context, slots);
+	}
+
+}
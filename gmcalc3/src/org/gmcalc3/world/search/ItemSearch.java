@@ -0,0 +1,451 @@
+// Finds the best items a world can make for an objective, eg. the sword with the most damage. Every valid
+// combination of an item base, a material for each of its slots, and up to a number of distinct prefixes is
+// considered, and the objective is an expression over the stats of the item. The search is a depth first
+// enumeration that is pruned with upper bounds: each component's contribution to each stat the objective uses is
+// known ahead of time, so the objective can be evaluated over the intervals of stat values the unchosen slots could
+// still give, and branches that can't beat the current top K are skipped.
+//
+// Contributions with variable expressions can't be bounded ahead of time, so items that have them are scored by
+// evaluating their stat maps.
+//
+// Each search is a Run, which holds everything that changes while it goes, so runs can overlap and each can be
+// cancelled on its own. A run splits the work into one task per material of each item base's first slot. Item
+// bases without material slots are searched as one task each.
+
+package org.gmcalc3.world.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.gmcalc3.world.Component;
+import org.gmcalc3.world.Item;
+import org.gmcalc3.world.ItemBase;
+import org.gmcalc3.world.StatMap;
+import org.gmcalc3.world.World;
+import org.hafermath.expression.EvaluationContext;
+import org.hafermath.expression.Expression;
+import org.hafermath.expression.VariableExpression;
+
+public final class ItemSearch {
+
+	// How many nodes are visited between checks of the time budget and cancellation.
+	private static final int CHECK_INTERVAL = 1024;
+
+	private static final Component[] EMPTY_COMPONENT_ARRAY = new Component[0];
+
+	// An item the search found, and its score.
+	public static final class Result {
+		private final World world;
+		private final ItemBase itemBase;
+		private final Component[] materials;
+		private final Component[] prefixes;
+		private final float score;
+
+		private Result(World world, ItemBase itemBase, Component[] materials, Component[] prefixes, float score) {
+			this.world = world;
+			this.itemBase = itemBase;
+			this.materials = materials;
+			this.prefixes = prefixes;
+			this.score = score;
+		}
+
+		public ItemBase getItemBase() {
+			return itemBase;
+		}
+
+		public Component[] getMaterials() {
+			return materials;
+		}
+
+		public Component[] getPrefixes() {
+			return prefixes;
+		}
+
+		public float getScore() {
+			return score;
+		}
+
+		// Get the item from the world's item cache.
+		public Item toItem() {
+			return world.getItem(itemBase, prefixes, materials);
+		}
+	}
+
+	// Orders results from the worst score to the best.
+	private static final Comparator<Result> BY_SCORE = new Comparator<Result>() {
+		@Override
+		public int compare(Result r1, Result r2) {
+			return Float.compare(r1.score, r2.score);
+		}
+	};
+
+	private final World world;				// The world to search.
+	private final Expression objective;		// The expression to maximize.
+	private final String[] keys;			// The stat keys the objective uses.
+	private final int maxPrefixes;			// The most prefixes an item can have.
+	private final int topK;					// The number of results to keep.
+	private volatile String[] itemBaseTags;	// The tags an item base must have to be searched.
+
+	// Constructor. The search finds the topK items with the highest values of the objective, trying up to
+	// maxPrefixes distinct prefixes on each combination of an item base and materials.
+	public ItemSearch(World world, Expression objective, int maxPrefixes, int topK) {
+		if (topK < 1)
+			throw new IllegalArgumentException("The search needs to keep at least one result.");
+		this.world = world;
+		this.objective = objective;
+		this.maxPrefixes = Math.max(maxPrefixes, 0);
+		this.topK = topK;
+		keys = Contributions.keysOf(objective);
+		itemBaseTags = new String[0];
+	}
+
+	// Only search item bases that have every tag in a requirement. This applies to runs made after it is called.
+	public void setItemBaseTags(String[] tags) {
+		itemBaseTags = tags.clone();
+	}
+
+	// Make a run of the search, which can be cancelled from another thread before or while it is executed.
+	public Run newRun() {
+		return new Run(itemBaseTags);
+	}
+
+	// Make a run of the search and execute it.
+	public List<Result> run(ExecutorService executor, long timeBudgetMillis) throws InterruptedException {
+		return newRun().execute(executor, timeBudgetMillis);
+	}
+
+	// One search. A run can only be executed once.
+	public final class Run {
+		private final String[] itemBaseTags;	// The tags an item base must have to be searched.
+		private final PriorityQueue<Result> best; // The best results so far, worst first. Guarded by itself.
+		private volatile float threshold;		// The worst score in best once it is full. Branches that can't beat it are pruned.
+		private volatile boolean cancelled;		// If true, the search stops as soon as it can.
+		private volatile boolean timedOut;		// If true, the search ran out of time.
+		private volatile long deadline;			// The System.nanoTime() the search has to stop by.
+		private boolean executed;				// If true, the run has been executed. Guarded by this.
+
+		private Run(String[] itemBaseTags) {
+			this.itemBaseTags = itemBaseTags;
+			best = new PriorityQueue<Result>(topK + 1, BY_SCORE);
+			threshold = Float.NEGATIVE_INFINITY;
+		}
+
+		// Stop the search. It returns the best results it has found so far, or none if it hasn't started.
+		public void cancel() {
+			cancelled = true;
+		}
+
+		// Check if the search stopped before it considered every item, because it was cancelled or ran out of time.
+		public boolean wasStopped() {
+			return cancelled || timedOut;
+		}
+
+		// Search on an executor, stopping after a time budget in milliseconds. A budget that isn't positive means no
+		// limit. Returns the best items found, best first.
+		public List<Result> execute(ExecutorService executor, long timeBudgetMillis) throws InterruptedException {
+			synchronized (this) {
+				if (executed)
+					throw new IllegalStateException("A run can only be executed once.");
+				executed = true;
+			}
+			deadline = (timeBudgetMillis > 0)? System.nanoTime() + timeBudgetMillis * 1000000L : Long.MAX_VALUE;
+
+			// Work out the bounds of each item base here, so that the tasks that split it can share them.
+			Collection<ItemBase> itemBases = world.getItemBaseMap().values();
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>(itemBases.size());
+			for (ItemBase itemBase : itemBases) {
+				if (cancelled)
+					break;
+				if (!itemBase.hasTags(itemBaseTags))
+					continue;
+				final Tables tables = new Tables(itemBase);
+				int numTasks = (tables.numSlots > 0)? tables.materials[0].length : 1;
+				for (int task = 0; task < numTasks; task++) {
+					final int firstMaterial = (tables.numSlots > 0)? task : -1;
+					futures.add(executor.submit(new Callable<Void>() {
+						@Override
+						public Void call() {
+							new Task(Run.this, tables, firstMaterial).run();
+							return null;
+						}
+					}));
+				}
+			}
+
+			try {
+				for (Future<?> future : futures)
+					future.get();
+			}
+			catch (ExecutionException e) {
+				cancelled = true;
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException)cause;
+				throw new RuntimeException(cause);
+			}
+			catch (InterruptedException e) {
+				cancelled = true;
+				throw e;
+			}
+
+			ArrayList<Result> out;
+			synchronized (best) {
+				out = new ArrayList<Result>(best);
+			}
+			Collections.sort(out, Collections.reverseOrder(BY_SCORE));
+			return out;
+		}
+
+		// Offer a result to the top K.
+		private void offer(Result result) {
+			synchronized (best) {
+				if (best.size() == topK && result.score <= best.peek().score)
+					return;
+				best.add(result);
+				if (best.size() > topK)
+					best.poll();
+				if (best.size() == topK)
+					threshold = best.peek().score;
+			}
+		}
+	}
+
+	// The contributions of the components an item base can be made with. They don't change during a search, so the
+	// tasks that split an item base share them.
+	private final class Tables {
+		private final ItemBase itemBase;
+		private final int numSlots;
+		private final Component[][] materials;		// The materials each slot can take.
+		private final float[][][] materialLo;		// The contribution of each material of each slot to each key.
+		private final float[][][] materialHi;
+		private final float[][] slotLo, slotHi;		// The bounds of the contributions of each slot to each key.
+		private final Component[] prefixes;			// The prefixes the item base can take.
+		private final int maxPicks;					// The most prefixes an item with this base can have.
+		private final float[][] prefixLo, prefixHi;	// The contribution of each prefix to each key.
+		private final float[][] suffixLo, suffixHi;	// The bounds of the contributions of the prefixes from each index on, and 0.
+		private final float[] baseLo, baseHi;		// The contribution of the item base.
+
+		private Tables(ItemBase itemBase) {
+			this.itemBase = itemBase;
+			int numKeys = keys.length;
+			StatMap baseStats = itemBase.getStatMap();
+
+			numSlots = itemBase.getDefaultMaterials().length;
+			materials = new Component[numSlots][];
+			materialLo = new float[numSlots][][];
+			materialHi = new float[numSlots][][];
+			slotLo = new float[numSlots][numKeys];
+			slotHi = new float[numSlots][numKeys];
+			for (int s = 0; s < numSlots; s++) {
+				materials[s] = itemBase.getValidMaterials(s);
+				if (materials[s].length == 0)
+					materials[s] = new Component[] { itemBase.getDefaultMaterial(s) };
+				int n = materials[s].length;
+				materialLo[s] = new float[n][numKeys];
+				materialHi[s] = new float[n][numKeys];
+				Arrays.fill(slotLo[s], Float.POSITIVE_INFINITY);
+				Arrays.fill(slotHi[s], Float.NEGATIVE_INFINITY);
+				for (int c = 0; c < n; c++) {
+					// Materials only add to the stats the item base has.
+					Contributions.add(materials[s][c].getStatMap(), 1, keys, baseStats, materialLo[s][c], materialHi[s][c]);
+					for (int v = 0; v < numKeys; v++) {
+						slotLo[s][v] = Math.min(slotLo[s][v], materialLo[s][c][v]);
+						slotHi[s][v] = Math.max(slotHi[s][v], materialHi[s][c][v]);
+					}
+				}
+			}
+
+			prefixes = (maxPrefixes > 0)? itemBase.getValidPrefixes() : EMPTY_COMPONENT_ARRAY;
+			maxPicks = Math.min(maxPrefixes, prefixes.length);
+			int numPrefixes = prefixes.length;
+			prefixLo = new float[numPrefixes][numKeys];
+			prefixHi = new float[numPrefixes][numKeys];
+			suffixLo = new float[numPrefixes + 1][numKeys];
+			suffixHi = new float[numPrefixes + 1][numKeys];
+			for (int p = numPrefixes - 1; p >= 0; p--) {
+				Contributions.add(prefixes[p].getStatMap(), 1, keys, null, prefixLo[p], prefixHi[p]);
+				for (int v = 0; v < numKeys; v++) {
+					suffixLo[p][v] = Math.min(suffixLo[p + 1][v], prefixLo[p][v]);
+					suffixHi[p][v] = Math.max(suffixHi[p + 1][v], prefixHi[p][v]);
+				}
+			}
+
+			baseLo = new float[numKeys];
+			baseHi = new float[numKeys];
+			Contributions.add(baseStats, 1, keys, null, baseLo, baseHi);
+		}
+	}
+
+	// The search of the items with one item base, and one material in the first slot if firstMaterial isn't -1.
+	private final class Task {
+		private final Run run;
+		private final Tables t;
+		private final int firstMaterial;
+
+		private final Component[] chosenMaterials;
+		private final Component[] chosenPrefixes;
+		private final float[][] partialLo, partialHi;	// The contributions of the choices so far, by depth.
+		private final float[] boundLo, boundHi;
+		private final EvaluationContext context;
+		private final int[] slots;
+		private final float[] interval;
+		private final StatMap scratch;				// The stats of an item, for scoring items with variable expressions.
+		private int numVisits;
+
+		private Task(Run run, Tables t, int firstMaterial) {
+			this.run = run;
+			this.t = t;
+			this.firstMaterial = firstMaterial;
+			int numKeys = keys.length;
+			chosenMaterials = new Component[t.numSlots];
+			chosenPrefixes = new Component[t.maxPicks];
+			partialLo = new float[t.numSlots + t.maxPicks + 1][];
+			partialHi = new float[t.numSlots + t.maxPicks + 1][];
+			partialLo[0] = t.baseLo;
+			partialHi[0] = t.baseHi;
+			for (int depth = 1; depth < partialLo.length; depth++) {
+				partialLo[depth] = new float[numKeys];
+				partialHi[depth] = new float[numKeys];
+			}
+			boundLo = new float[numKeys];
+			boundHi = new float[numKeys];
+			context = new EvaluationContext(Math.max(numKeys, 1));
+			slots = new int[numKeys];
+			for (int v = 0; v < numKeys; v++)
+				slots[v] = v;
+			interval = new float[2];
+			scratch = new StatMap(t.itemBase.getStatMap().getSchema());
+		}
+
+		private void run() {
+			chooseMaterial(0);
+		}
+
+		// Check if the search should stop.
+		private boolean shouldStop() {
+			if (run.cancelled || run.timedOut)
+				return true;
+			if (++numVisits % CHECK_INTERVAL == 0 && System.nanoTime() > run.deadline) {
+				run.timedOut = true;
+				return true;
+			}
+			return false;
+		}
+
+		// Get the highest score the objective could have with the given partial contributions, the bounds of the
+		// material slots from a slot on, and a number of prefixes from an index on. This is only for pruning.
+		private float upperBound(int depth, int firstSlot, int numPrefixPicks, int firstPrefix) {
+			if (!(objective instanceof VariableExpression))
+				return Contributions.evaluate(objective, context, slots);
+			for (int v = 0; v < keys.length; v++) {
+				float lo = partialLo[depth][v];
+				float hi = partialHi[depth][v];
+				for (int s = firstSlot; s < t.numSlots; s++) {
+					lo += t.slotLo[s][v];
+					hi += t.slotHi[s][v];
+				}
+				if (numPrefixPicks > 0) {
+					lo += numPrefixPicks * Math.min(0, t.suffixLo[firstPrefix][v]);
+					hi += numPrefixPicks * Math.max(0, t.suffixHi[firstPrefix][v]);
+				}
+				boundLo[v] = lo;
+				boundHi[v] = hi;
+			}
+			((VariableExpression)objective).evaluateInterval(context, boundLo, boundHi, slots, interval);
+			return interval[1];
+		}
+
+		// Check if a branch can be pruned. NaN bounds can't be trusted, so they are never pruned.
+		private boolean canPrune(float upperBound) {
+			return upperBound <= run.threshold;
+		}
+
+		// Add a contribution to the partial sums of a depth to get those of the next depth.
+		private void extend(int depth, float[] lo, float[] hi) {
+			for (int v = 0; v < keys.length; v++) {
+				partialLo[depth + 1][v] = partialLo[depth][v] + lo[v];
+				partialHi[depth + 1][v] = partialHi[depth][v] + hi[v];
+			}
+		}
+
+		// Choose the material for a slot.
+		private void chooseMaterial(int slot) {
+			if (slot == t.numSlots) {
+				choosePrefixes(t.numSlots, 0, 0);
+				return;
+			}
+			int first = 0, last = t.materials[slot].length;
+			if (slot == 0 && firstMaterial >= 0) {
+				first = firstMaterial;
+				last = firstMaterial + 1;
+			}
+			for (int c = first; c < last; c++) {
+				if (shouldStop())
+					return;
+				extend(slot, t.materialLo[slot][c], t.materialHi[slot][c]);
+				if (canPrune(upperBound(slot + 1, slot + 1, t.maxPicks, 0)))
+					continue;
+				chosenMaterials[slot] = t.materials[slot][c];
+				chooseMaterial(slot + 1);
+			}
+		}
+
+		// Score the item with the prefixes chosen so far, then try adding each prefix from an index on.
+		private void choosePrefixes(int depth, int numChosen, int firstPrefix) {
+			score(depth, numChosen);
+			if (numChosen == t.maxPicks)
+				return;
+			for (int p = firstPrefix; p < t.prefixes.length; p++) {
+				if (shouldStop())
+					return;
+				extend(depth, t.prefixLo[p], t.prefixHi[p]);
+				if (canPrune(upperBound(depth + 1, t.numSlots, t.maxPicks - numChosen - 1, p + 1)))
+					continue;
+				chosenPrefixes[numChosen] = t.prefixes[p];
+				choosePrefixes(depth + 1, numChosen + 1, p + 1);
+			}
+		}
+
+		// Score the item that has been chosen and offer it to the top K.
+		private void score(int depth, int numChosen) {
+			boolean exact = true;
+			for (int v = 0; v < keys.length; v++) {
+				if (partialLo[depth][v] != partialHi[depth][v]) {
+					exact = false;
+					break;
+				}
+			}
+			if (exact) {
+				// The stats the objective uses are known exactly, so evaluate it at them.
+				for (int v = 0; v < keys.length; v++)
+					context.setValue(v, partialLo[depth][v]);
+			}
+			else {
+				// Put the item's stats together the same way Item does and evaluate them.
+				scratch.recycle();
+				scratch.mergeMap(t.itemBase.getStatMap());
+				for (int s = 0; s < t.numSlots; s++)
+					scratch.addMap(chosenMaterials[s].getStatMap());
+				for (int p = 0; p < numChosen; p++)
+					scratch.mergeMap(chosenPrefixes[p].getStatMap());
+				scratch.evaluateExpressions();
+				Contributions.load(scratch, keys, context);
+			}
+			float score = Contributions.evaluate(objective, context, slots);
+			if (score != score || score <= run.threshold)
+				return;
+			run.offer(new Result(world, t.itemBase, chosenMaterials.clone(),
+					Arrays.copyOf(chosenPrefixes, numChosen), score));
+		}
+	}
+
+}
@@ -0,0 +1,595 @@
+// Picks which of a character's items to equip to get the highest value of an objective over the character's
+// stats, eg. the most damage a fighter can do. Items can be moved between the inventory and the equipped items,
+// subject to limits on how many equipped items can have some tags, eg. at most two rings.
+//
+// The search is a hill climb over loadouts that adds, removes, and swaps single items until no move helps,
+// restarted from several loadouts at once on an executor. Each loadout keeps the sum of its items' contributions
+// to the stats the objective uses, so a move is scored by adding one item's contribution rather than by
+// recalculating the character's stats. If some of those contributions have variable expressions, each climb keeps
+// the stats of its loadout in a scratch map instead. Stats can't be taken back out of a merge, so a move rebuilds
+// only the stats the moved items have from the items that have them, and then evaluates only the expressions that
+// depend on those stats, the same way Character does when some of its items change. Scores are remembered by a
+// hash of the loadout, so the loadouts the climbs share are only scored once.
+
+package org.gmcalc3.world.search;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gmcalc3.world.Character;
+import org.gmcalc3.world.Item;
+import org.gmcalc3.world.ListBag;
+import org.gmcalc3.world.Stat;
+import org.gmcalc3.world.StatMap;
+import org.gmcalc3.world.StatSchema;
+import org.hafermath.expression.EvaluationContext;
+import org.hafermath.expression.Expression;
+
+public final class LoadoutOptimizer {
+
+	// How many moves are scored between checks of the time budget and cancellation.
+	private static final int CHECK_INTERVAL = 256;
+
+	// The most scores to remember.
+	private static final int MAX_MEMO_SIZE = 1 << 16;
+
+	// The items a loadout equips, and its score.
+	public static final class Loadout {
+		private final Item[] items;
+		private final int[] counts;
+		private final float score;
+
+		private Loadout(Item[] items, int[] counts, float score) {
+			this.items = items;
+			this.counts = counts;
+			this.score = score;
+		}
+
+		public Item[] getItems() {
+			return items.clone();
+		}
+
+		public int[] getCounts() {
+			return counts.clone();
+		}
+
+		public float getScore() {
+			return score;
+		}
+
+		// Move items between a character's inventory and equipped items so that this loadout is equipped.
+		public void apply(Character character) {
+			ListBag<Item> equipped = character.getEquipped();
+			ListBag<Item> inventory = character.getInventory();
+
+			// Unequip what isn't in the loadout first.
+			Item[] wasEquipped = equipped.toArray(new Item[equipped.size()]);
+			for (Item item : wasEquipped) {
+				int extra = equipped.getCount(item) - countOf(item);
+				if (extra > 0) {
+					character.unequip(item, extra);
+					inventory.add(item, extra);
+				}
+			}
+
+			for (int i = 0; i < items.length; i++) {
+				int missing = Math.min(counts[i] - Math.max(equipped.getCount(items[i]), 0),
+						inventory.getCount(items[i]));
+				if (missing > 0) {
+					inventory.remove(items[i], missing);
+					character.equip(items[i], missing);
+				}
+			}
+		}
+
+		private int countOf(Item item) {
+			for (int i = 0; i < items.length; i++) {
+				if (items[i].equals(item))
+					return counts[i];
+			}
+			return 0;
+		}
+	}
+
+	// A limit on the number of equipped items with every tag in a requirement.
+	private static final class TagLimit {
+		private final String[] tags;
+		private final int max;
+
+		private TagLimit(String[] tags, int max) {
+			this.tags = tags;
+			this.max = max;
+		}
+	}
+
+	private final Character character;			// The character to pick items for.
+	private final Expression objective;			// The expression to maximize.
+	private final String[] keys;				// The stat keys the objective uses.
+	private final ArrayList<TagLimit> limits;	// The limits on the equipped items.
+
+	// Constructor.
+	public LoadoutOptimizer(Character character, Expression objective) {
+		this.character = character;
+		this.objective = objective;
+		keys = Contributions.keysOf(objective);
+		limits = new ArrayList<TagLimit>();
+	}
+
+	// Allow at most max equipped items whose item bases have every tag in a requirement, counting each of a stack.
+	// This applies to runs made after it is called.
+	public void addTagLimit(String[] tags, int max) {
+		if (max < 0)
+			throw new IllegalArgumentException("A tag limit can't be negative.");
+		limits.add(new TagLimit(tags.clone(), max));
+	}
+
+	// Make a run of the search, which can be cancelled from another thread before or while it is executed.
+	public Run newRun() {
+		return new Run(limits.toArray(new TagLimit[limits.size()]));
+	}
+
+	// Make a run of the search and execute it.
+	public Loadout run(ExecutorService executor, int numTasks, long seed, long timeBudgetMillis)
+			throws InterruptedException {
+		return newRun().execute(executor, numTasks, seed, timeBudgetMillis);
+	}
+
+	// One search. It holds the snapshot of the character's items and the scores it has remembered, so runs can
+	// overlap. A run can only be executed once.
+	public final class Run {
+		private final TagLimit[] limits;			// The limits on the equipped items.
+		private volatile boolean cancelled;			// If true, the search stops as soon as it can.
+		private volatile boolean timedOut;			// If true, the search ran out of time.
+		private volatile long deadline;				// The System.nanoTime() the search has to stop by.
+		private boolean executed;					// If true, the run has been executed. Guarded by this.
+
+		// The items the character has, and what they contribute, as of the start of the run.
+		private Item[] items;
+		private int[] maxCounts;					// How many of each item the character has.
+		private int[] startCounts;					// How many of each item the character has equipped.
+		private float[][] contributions;			// What one of each item adds to each key.
+		private float[] baseValues;					// What the character's base stats give each key.
+		private boolean exact;						// If false, loadouts are scored by rebuilding their stats.
+		private int[][] limitsOf;					// The limits that apply to each item.
+		private int[] limitMaxes;
+		private String[] statKeys;					// The keys of the base stats and items' stats, if not exact.
+		private int[][] statKeysOf;					// The indices in statKeys of each item's keys.
+		private int[][] holdersOf;					// The items that have a stat for each key in statKeys.
+		private long[] hashes;						// The hash of one of each item, which loadout hashes are sums of.
+		private ConcurrentHashMap<Long, Float> memo; // The scores of the loadouts with each hash.
+		private AtomicInteger memoSize;				// The number of scores in memo.
+
+		private Run(TagLimit[] limits) {
+			this.limits = limits;
+		}
+
+		// Stop the search. It returns the best loadout it has found so far. If it hasn't started, the climbs stop
+		// as soon as they have scored the loadouts they start from.
+		public void cancel() {
+			cancelled = true;
+		}
+
+		// Check if the search stopped before every climb finished, because it was cancelled or ran out of time.
+		public boolean wasStopped() {
+			return cancelled || timedOut;
+		}
+
+		// Search with numTasks climbs on an executor, stopping after a time budget in milliseconds. A budget that
+		// isn't positive means no limit. The first climb starts from the equipped items, the second from nothing,
+		// and the rest from random loadouts drawn with seed. Returns the best loadout found. The character must not
+		// be changed while the search runs.
+		public Loadout execute(ExecutorService executor, int numTasks, long seed, long timeBudgetMillis)
+				throws InterruptedException {
+			synchronized (this) {
+				if (executed)
+					throw new IllegalStateException("A run can only be executed once.");
+				executed = true;
+			}
+			deadline = (timeBudgetMillis > 0)? System.nanoTime() + timeBudgetMillis * 1000000L : Long.MAX_VALUE;
+			prepare(seed);
+
+			numTasks = Math.max(numTasks, 1);
+			ArrayList<Future<Climb>> futures = new ArrayList<Future<Climb>>(numTasks);
+			for (int task = 0; task < numTasks; task++) {
+				final int start = task;
+				final Random random = new Random(seed ^ (0x9E3779B97F4A7C15L * (task + 1)));
+				futures.add(executor.submit(new Callable<Climb>() {
+					@Override
+					public Climb call() {
+						Climb climb = new Climb();
+						climb.start(start, random);
+						climb.run();
+						return climb;
+					}
+				}));
+			}
+
+			Climb best = null;
+			try {
+				for (Future<Climb> future : futures) {
+					Climb climb = future.get();
+					if (best == null || climb.score > best.score)
+						best = climb;
+				}
+			}
+			catch (ExecutionException e) {
+				cancelled = true;
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException)cause;
+				throw new RuntimeException(cause);
+			}
+			catch (InterruptedException e) {
+				cancelled = true;
+				throw e;
+			}
+
+			// Every climb has finished, so the remembered scores can go.
+			memo = null;
+			return best.toLoadout();
+		}
+
+		// Take a snapshot of the character's items and work out what they contribute.
+		private void prepare(long seed) {
+			ListBag<Item> equipped = character.getEquipped();
+			ListBag<Item> inventory = character.getInventory();
+			ArrayList<Item> pool = new ArrayList<Item>(equipped.size() + inventory.size());
+			for (int i = 0; i < equipped.size(); i++)
+				pool.add(equipped.get(i));
+			for (int i = 0; i < inventory.size(); i++) {
+				if (!equipped.contains(inventory.get(i)))
+					pool.add(inventory.get(i));
+			}
+
+			int n = pool.size();
+			items = pool.toArray(new Item[n]);
+			maxCounts = new int[n];
+			startCounts = new int[n];
+			contributions = new float[n][keys.length];
+			float[] hi = new float[keys.length];
+			exact = true;
+			for (int i = 0; i < n; i++) {
+				startCounts[i] = Math.max(equipped.getCount(items[i]), 0);
+				maxCounts[i] = startCounts[i] + Math.max(inventory.getCount(items[i]), 0);
+				Contributions.add(items[i].getStatMap(), 1, keys, null, contributions[i], hi);
+			}
+			baseValues = new float[keys.length];
+			StatMap baseStats = character.getWorld().getCharacterBaseStats();
+			if (baseStats != null)
+				Contributions.add(baseStats, 1, keys, null, baseValues, hi);
+			for (int v = 0; v < keys.length; v++) {
+				if (Float.isInfinite(hi[v]))
+					exact = false;
+			}
+
+			limitMaxes = new int[limits.length];
+			int[] applying = new int[limits.length];
+			limitsOf = new int[n][];
+			for (int l = 0; l < limitMaxes.length; l++)
+				limitMaxes[l] = limits[l].max;
+			for (int i = 0; i < n; i++) {
+				int numApplying = 0;
+				for (int l = 0; l < limitMaxes.length; l++) {
+					if (items[i].getItemBase().hasTags(limits[l].tags))
+						applying[numApplying++] = l;
+				}
+				limitsOf[i] = new int[numApplying];
+				System.arraycopy(applying, 0, limitsOf[i], 0, numApplying);
+			}
+
+			statKeys = null;
+			statKeysOf = null;
+			holdersOf = null;
+			if (!exact)
+				indexStatKeys(baseStats);
+
+			Random random = new Random(seed);
+			hashes = new long[n];
+			for (int i = 0; i < n; i++)
+				hashes[i] = random.nextLong();
+			memo = new ConcurrentHashMap<Long, Float>();
+			memoSize = new AtomicInteger();
+		}
+
+		// Number the keys of the base stats and items' stats, and find which items have each key, so that a move
+		// only has to rebuild the stats of the items that moved.
+		private void indexStatKeys(StatMap baseStats) {
+			HashMap<String, Integer> indices = new HashMap<String, Integer>();
+			ArrayList<String> allKeys = new ArrayList<String>();
+			if (baseStats != null) {
+				for (String key : baseStats.keySet()) {
+					indices.put(key, Integer.valueOf(allKeys.size()));
+					allKeys.add(key);
+				}
+			}
+
+			int n = items.length;
+			statKeysOf = new int[n][];
+			for (int i = 0; i < n; i++) {
+				StatMap statMap = items[i].getStatMap();
+				statKeysOf[i] = new int[statMap.size()];
+				int j = 0;
+				for (String key : statMap.keySet()) {
+					Integer index = indices.get(key);
+					if (index == null) {
+						index = Integer.valueOf(allKeys.size());
+						indices.put(key, index);
+						allKeys.add(key);
+					}
+					statKeysOf[i][j++] = index.intValue();
+				}
+			}
+			statKeys = allKeys.toArray(new String[allKeys.size()]);
+
+			int[] numHolders = new int[statKeys.length];
+			for (int i = 0; i < n; i++) {
+				for (int k : statKeysOf[i])
+					numHolders[k]++;
+			}
+			holdersOf = new int[statKeys.length][];
+			for (int k = 0; k < statKeys.length; k++) {
+				holdersOf[k] = new int[numHolders[k]];
+				numHolders[k] = 0;
+			}
+			for (int i = 0; i < n; i++) {
+				for (int k : statKeysOf[i])
+					holdersOf[k][numHolders[k]++] = i;
+			}
+		}
+
+		// One hill climb.
+		private final class Climb {
+			private final int[] counts;				// How many of each item are equipped.
+			private final int[] usage;				// How much of each limit is used.
+			private final float[] sums;				// What the equipped items contribute to each key.
+			private long hash;						// The hash of the loadout.
+			private float score;					// The score of the loadout.
+			private final EvaluationContext context;
+			private final int[] slots;
+			private final StatMap scratch;			// The stats of the loadout, if not exact.
+			private final boolean[] stale;			// If stale[k], the stat for statKeys[k] in scratch is out of date.
+			private final ArrayList<String> staleKeys;
+			private int numScored;
+
+			private Climb() {
+				int n = items.length;
+				counts = new int[n];
+				usage = new int[limitMaxes.length];
+				sums = new float[keys.length];
+				context = new EvaluationContext(Math.max(keys.length, 1));
+				slots = new int[keys.length];
+				for (int v = 0; v < keys.length; v++)
+					slots[v] = v;
+				if (exact) {
+					scratch = null;
+					stale = null;
+					staleKeys = null;
+				}
+				else {
+					// Give the scratch map a stat for every key up front, so its keys never change and only the
+					// expressions that depend on a move have to be evaluated again. An empty stat is worth 0, the same
+					// as a missing one.
+					scratch = new StatMap(StatSchema.of(character.getWorld()));
+					stale = new boolean[statKeys.length];
+					staleKeys = new ArrayList<String>(statKeys.length);
+					for (int k = 0; k < statKeys.length; k++) {
+						scratch.put(statKeys[k], new Stat());
+						markStale(k);
+					}
+				}
+			}
+
+			// Fill the loadout to start from. Items that would break a limit are left out.
+			private void start(int kind, Random random) {
+				int n = items.length;
+				if (kind == 0) {
+					for (int i = 0; i < n; i++) {
+						for (int c = 0; c < startCounts[i] && canAdd(i); c++)
+							move(i, 1);
+					}
+				}
+				else if (kind > 1) {
+					// Try each item in a random order, taking some of each that fits.
+					int[] order = new int[n];
+					for (int i = 0; i < n; i++)
+						order[i] = i;
+					for (int i = n - 1; i > 0; i--) {
+						int j = random.nextInt(i + 1);
+						int t = order[i];
+						order[i] = order[j];
+						order[j] = t;
+					}
+					for (int i : order) {
+						int wanted = random.nextInt(maxCounts[i] + 1);
+						for (int c = 0; c < wanted && canAdd(i); c++)
+							move(i, 1);
+					}
+				}
+				score = score();
+			}
+
+			// Check if one more of an item can be equipped.
+			private boolean canAdd(int i) {
+				if (counts[i] >= maxCounts[i])
+					return false;
+				for (int l : limitsOf[i]) {
+					if (usage[l] >= limitMaxes[l])
+						return false;
+				}
+				return true;
+			}
+
+			// Equip or unequip some of an item.
+			private void move(int i, int delta) {
+				counts[i] += delta;
+				for (int l : limitsOf[i])
+					usage[l] += delta;
+				for (int v = 0; v < keys.length; v++)
+					sums[v] += delta * contributions[i][v];
+				hash += delta * hashes[i];
+				if (!exact) {
+					for (int k : statKeysOf[i])
+						markStale(k);
+				}
+			}
+
+			// Note that a stat in the scratch map has to be rebuilt before the next score.
+			private void markStale(int k) {
+				if (!stale[k]) {
+					stale[k] = true;
+					staleKeys.add(statKeys[k]);
+				}
+			}
+
+			// Rebuild the stale stats in the scratch map from the base stats and the equipped items that have them, in
+			// the same order as Character.recalculateStats(), and evaluate the expressions that depend on them.
+			private void refreshScratch() {
+				if (staleKeys.isEmpty())
+					return;
+				StatMap baseStats = character.getWorld().getCharacterBaseStats();
+				for (int k = 0; k < statKeys.length; k++) {
+					if (!stale[k])
+						continue;
+					stale[k] = false;
+					Stat stat = null;
+					if (baseStats != null) {
+						Stat baseStat = baseStats.get(statKeys[k]);
+						if (baseStat != null)
+							stat = baseStat.copy();
+					}
+					for (int i : holdersOf[k]) {
+						if (counts[i] < 1)
+							continue;
+						Stat itemStat = items[i].getStatMap().get(statKeys[k]);
+						if (stat == null)
+							stat = itemStat.copy(counts[i]);
+						else
+							stat.merge(itemStat, counts[i]);
+					}
+					scratch.put(statKeys[k], (stat != null)? stat : new Stat());
+				}
+				scratch.evaluateExpressions(staleKeys);
+				staleKeys.clear();
+			}
+
+			// Check if the search should stop.
+			private boolean shouldStop() {
+				if (cancelled || timedOut)
+					return true;
+				if (++numScored % CHECK_INTERVAL == 0 && System.nanoTime() > deadline) {
+					timedOut = true;
+					return true;
+				}
+				return false;
+			}
+
+			// Score the loadout, or get its score if it has been scored before.
+			private float score() {
+				Long key = Long.valueOf(hash);
+				Float known = memo.get(key);
+				if (known != null)
+					return known.floatValue();
+
+				if (exact) {
+					for (int v = 0; v < keys.length; v++)
+						context.setValue(v, baseValues[v] + sums[v]);
+				}
+				else {
+					refreshScratch();
+					Contributions.load(scratch, keys, context);
+				}
+				float out = Contributions.evaluate(objective, context, slots);
+				if (out != out)
+					out = Float.NEGATIVE_INFINITY;
+				if (memoSize.get() < MAX_MEMO_SIZE && memo.putIfAbsent(key, Float.valueOf(out)) == null)
+					memoSize.incrementAndGet();
+				return out;
+			}
+
+			// Make the best move that improves the score until there are none.
+			private void run() {
+				int n = items.length;
+				while (true) {
+					float bestScore = score;
+					int bestOut = -1, bestIn = -1;
+
+					for (int out = -1; out < n; out++) {
+						if (out >= 0) {
+							if (counts[out] == 0)
+								continue;
+							// Try just taking the item off.
+							move(out, -1);
+							if (shouldStop()) {
+								move(out, 1);
+								return;
+							}
+							float s = score();
+							if (s > bestScore) {
+								bestScore = s;
+								bestOut = out;
+								bestIn = -1;
+							}
+						}
+
+						// Try putting each item on in its place.
+						for (int in = 0; in < n; in++) {
+							if (in == out || !canAdd(in))
+								continue;
+							move(in, 1);
+							if (shouldStop()) {
+								move(in, -1);
+								if (out >= 0)
+									move(out, 1);
+								return;
+							}
+							float s = score();
+							move(in, -1);
+							if (s > bestScore) {
+								bestScore = s;
+								bestOut = out;
+								bestIn = in;
+							}
+						}
+
+						if (out >= 0)
+							move(out, 1);
+					}
+
+					if (bestOut < 0 && bestIn < 0)
+						return;
+					if (bestOut >= 0)
+						move(bestOut, -1);
+					if (bestIn >= 0)
+						move(bestIn, 1);
+					score = bestScore;
+				}
+			}
+
+			// Get the loadout this climb ended on.
+			private Loadout toLoadout() {
+				int numEquipped = 0;
+				for (int count : counts) {
+					if (count > 0)
+						numEquipped++;
+				}
+				Item[] outItems = new Item[numEquipped];
+				int[] outCounts = new int[numEquipped];
+				for (int i = 0, j = 0; i < counts.length; i++) {
+					if (counts[i] > 0) {
+						outItems[j] = items[i];
+						outCounts[j++] = counts[i];
+					}
+				}
+				return new Loadout(outItems, outCounts, score);
+			}
+		}
+	}
+
+}
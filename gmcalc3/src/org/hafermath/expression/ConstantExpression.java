@@ -5,20 +5,20 @@ package org.hafermath.expression;
 
 public class ConstantExpression implements Expression {
 	
-	private float value;
+	private final float value;
 	
 	public ConstantExpression(float value) {
 		this.value = value;
 	}
 
-	@Override
 	public float getValue() {
 		return value;
 	}
 	
 	@Override
 	public Expression copy() {
-		return new ConstantExpression(value);
+		// Constants are immutable.
+		return this;
 	}
 	
 	@Override
@@ -32,6 +32,11 @@ public class ConstantExpression implements Expression {
 			return other.addWith(this);
 	}
 	
+	@Override
+	public Expression multiplyBy(float factor) {
+		return new ConstantExpression(value * factor);
+	}
+	
 	@Override
 	public String toString() {
 		return "" + value;
@@ -0,0 +1,80 @@
+// The mutable state of evaluating expressions: the values of the variable slots and a scratch stack.
+// Expressions are immutable and can be shared between threads, but each thread needs its own context.
+
+package org.hafermath.expression;
+
+import java.util.Arrays;
+
+public final class EvaluationContext {
+
+	private float[] values;	// The value of each slot.
+	private float[] stack;	// The stack that programs run on. It grows to fit the deepest program.
+	private float[][] batchBuffers;	// The buffers that batches run on. They grow to fit the largest batch.
+	private float[][] batchStack;	// The stack of columns and buffers that batches run on.
+	private float[] arguments;		// The arguments of a function call in a batch.
+
+	// Constructor.
+	public EvaluationContext(int numSlots) {
+		values = new float[numSlots];
+		stack = new float[8];
+	}
+
+	// Get the number of slots.
+	public int getNumSlots() {
+		return values.length;
+	}
+
+	// Change the number of slots. Every slot is reset to 0.
+	public void resize(int numSlots) {
+		if (numSlots == values.length)
+			Arrays.fill(values, 0);
+		else
+			values = new float[numSlots];
+	}
+
+	// Get the values of the slots. Changing the array changes the slots.
+	public float[] getValues() {
+		return values;
+	}
+
+	public float getValue(int slot) {
+		return values[slot];
+	}
+
+	public void setValue(int slot, float value) {
+		values[slot] = value;
+	}
+
+	// Get a stack at least depth long.
+	float[] getStack(int depth) {
+		if (stack.length < depth)
+			stack = new float[Math.max(depth, stack.length * 2)];
+		return stack;
+	}
+
+	// Get at least depth buffers that are each at least count long.
+	float[][] getBatchBuffers(int depth, int count) {
+		if (batchBuffers == null || batchBuffers.length < depth)
+			batchBuffers = (batchBuffers == null)? new float[depth][] : Arrays.copyOf(batchBuffers, depth);
+		for (int i = 0; i < depth; i++) {
+			if (batchBuffers[i] == null || batchBuffers[i].length < count)
+				batchBuffers[i] = new float[count];
+		}
+		return batchBuffers;
+	}
+
+	// Get a stack of at least depth arrays for a batch to run on.
+	float[][] getBatchStack(int depth) {
+		if (batchStack == null || batchStack.length < depth)
+			batchStack = new float[depth][];
+		return batchStack;
+	}
+
+	// Get an array at least count long for the arguments of a call.
+	float[] getArguments(int count) {
+		if (arguments == null || arguments.length < count)
+			arguments = new float[Math.max(count, 8)];
+		return arguments;
+	}
+
+}
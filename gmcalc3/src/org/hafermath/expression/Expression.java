@@ -17,36 +17,12 @@ public interface Expression {
 			this.type = type;
 		}
 		
+		public byte getType() {
+			return type;
+		}
+		
 		public float operate(float value1, float value2) {
-			// Add
-			if (type == 0)
-				return value1 + value2;
-			// Subtract
-			if (type == 1)
-				return value1 - value2;
-			// Multiply
-			if (type == 2)
-				return value1 * value2;
-			// Divide
-			if (type == 3)
-				return value1 / value2;
-			// Power
-			if (type == 4)
-				return (float) Math.pow(value1, value2);
-			// Modulus
-			if (type == 5)
-				return value1 % value2;
-			// Max
-			if (type == 6)
-				return Math.max(value1, value2);
-			// Min
-			if (type == 7)
-				return Math.min(value1, value2);
-			// Root
-			if (type == 8)
-				return (float) Math.pow(value1, 1.0 / value2);
-			// Unknown
-			return 0;
+			return ExpressionProgram.operate(type, value1, value2);
 		}
 		
 		@Override
@@ -66,6 +42,62 @@ public interface Expression {
 		}
 	}
 	
+	// A sum of a number of operands, which are the previous values on the stack.
+	public static final class SumToken extends Token {
+		
+		private int arity; // The number of operands.
+		
+		public SumToken(int arity) {
+			this.arity = arity;
+		}
+		
+		public int getArity() {
+			return arity;
+		}
+		
+		@Override
+		public String toString() {
+			return ADD + arity;
+		}
+	}
+	
+	// A call to a function in a FunctionLibrary. Its arguments are the previous values on the stack.
+	public static final class FunctionToken extends Token {
+		
+		private final String name;					// The name the function was called by.
+		private final int opcode;					// The opcode the call compiles to.
+		private final int arity;					// The number of arguments.
+		private final ExpressionFunction function;	// The function to call, if it isn't built into the program.
+		
+		public FunctionToken(String name, int opcode, int arity, ExpressionFunction function) {
+			this.name = name;
+			this.opcode = opcode;
+			this.arity = arity;
+			this.function = function;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public int getOpcode() {
+			return opcode;
+		}
+		
+		public int getArity() {
+			return arity;
+		}
+		
+		public ExpressionFunction getFunction() {
+			return function;
+		}
+		
+		@Override
+		public String toString() {
+			return name + '(' + arity + ')';
+		}
+	}
+	
 	// A number in an expression.
 	public static final class NumberToken extends Token {
 		
@@ -118,11 +150,16 @@ public interface Expression {
 	};
 	public static final String LEFT_PAREN = "(";
 	public static final String RIGHT_PAREN = ")";
+	public static final String ARGUMENT_SEPARATOR = ",";
 
-	float getValue();
-	
+	// Expressions are immutable, so this may return the expression itself.
 	Expression copy();
 	
+	// Make an expression that is the sum of this and another expression.
 	Expression addWith(Expression other);
 	
+	// Make an expression that is this multiplied by a constant factor. Adding an expression to itself n times
+	// is the same as multiplying it by n.
+	Expression multiplyBy(float factor);
+	
 }
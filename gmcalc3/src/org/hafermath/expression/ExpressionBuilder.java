@@ -2,181 +2,313 @@
 
 package org.hafermath.expression;
 
-import java.util.ArrayDeque;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import org.hafermath.expression.ConstantExpression;
-import org.hafermath.expression.VariableExpression;
+import java.util.ArrayList;
 
 import static org.hafermath.expression.Expression.*;
 
 public class ExpressionBuilder {
 
-	public static final String NUMBER_REGEX = "\\-?(\\d*\\.)?\\d+";
-	public static final String VARIABLE_REGEX = "[A-Za-z]\\w*";
-	public static final String OPERATOR_REGEX = "\\+|\\-|\\*|/|\\^|%|>|<|\\^1/";
-	public static final String PARENTHESIS_REGEX = "\\(|\\)";
-	public static final String TOKEN_REGEX = NUMBER_REGEX + '|' +
-			VARIABLE_REGEX + '|' + OPERATOR_REGEX + '|' + PARENTHESIS_REGEX;
+	// Codes for the operator stack. The codes below NEGATE are the operator types in Expression.OPERATORS.
+	private static final int NEGATE = OPERATORS.length;	// Unary minus, which becomes a multiplication by -1.
+	private static final int PAREN = NEGATE + 1;			// A left parenthesis.
+	private static final int CALL = PAREN + 1;				// The left parenthesis of a function call.
+
+	// The precedence of each operator stack code. Higher codes bind tighter. Unary minus binds tighter than
+	// multiplication but looser than powers, so -x^2 is -(x^2). A minus sign stuck to a number is part of it instead.
+	private static final byte[] PRECEDENCE = new byte[CALL + 1];
+	static {
+		PRECEDENCE[ExpressionProgram.OP_POWER] = 4;
+		PRECEDENCE[ExpressionProgram.OP_ROOT] = 4;
+		PRECEDENCE[NEGATE] = 3;
+		PRECEDENCE[ExpressionProgram.OP_MULTIPLY] = 2;
+		PRECEDENCE[ExpressionProgram.OP_DIVIDE] = 2;
+		PRECEDENCE[ExpressionProgram.OP_MODULUS] = 2;
+		PRECEDENCE[ExpressionProgram.OP_ADD] = 1;
+		PRECEDENCE[ExpressionProgram.OP_SUBTRACT] = 1;
+		PRECEDENCE[ExpressionProgram.OP_MAX] = 0;
+		PRECEDENCE[ExpressionProgram.OP_MIN] = 0;
+		PRECEDENCE[PAREN] = -1;
+		PRECEDENCE[CALL] = -1;
+	}
 
-	private Matcher numberMatcher;
-	private Matcher tokenMatcher;
+	// Operator tokens are immutable, so one of each is shared by every expression.
+	private static final OperatorToken[] OPERATOR_TOKENS = new OperatorToken[OPERATORS.length];
+	static {
+		for (byte i = 0; i < OPERATOR_TOKENS.length; i++)
+			OPERATOR_TOKENS[i] = new OperatorToken(i);
+	}
+	private static final NumberToken NEGATIVE_ONE = new NumberToken(-1);
 	
-	// Constructor.
+	private final ExpressionCache cache;		// The cache of parsed expressions. May be null.
+	private final FunctionLibrary library;		// The functions expressions can call.
+	
+	// Constructors. A builder holds no parsing state, so it can be shared between threads.
 	public ExpressionBuilder() {
-		numberMatcher = Pattern.compile(NUMBER_REGEX).matcher("");
-		tokenMatcher = Pattern.compile(TOKEN_REGEX).matcher("");
+		this(null);
 	}
 	
-	// Make tokens from a string that can be turned into RPN.
-	private String[] makeRawTokens(String expString) {
-		// Count the number of tokens in the string.
-		int numTokens = 0;
-		tokenMatcher.reset(expString);
-		while (tokenMatcher.find()) {
-			numTokens++;
-		}
-		
-		// Get the tokens from the string.
-		tokenMatcher.reset();
-		String rawTokens[] = new String[numTokens];
-		int tI = 0;
-		while (tokenMatcher.find()) {
-			rawTokens[tI++] = tokenMatcher.group();
-		}
-		
-		// We need to deal with implied multiplication.
-		// Count the number of left parenthesis that don't have operators before them, ex. 3(x + 2)
-		int numOperatorlessParens = 0;
-		for (int i = 1; i < rawTokens.length; i++) {
-			if (rawTokens[i].equals(LEFT_PAREN)) {
-				if (!rawTokens[i].equals(LEFT_PAREN) && operatorType(rawTokens[i - 1]) == -1) {
-					numOperatorlessParens++;
-				}
-			}
+	public ExpressionBuilder(ExpressionCache cache) {
+		this(cache, FunctionLibrary.getDefault());
+	}
+	
+	// The cache must only be shared by builders with the same library, since it is keyed by source text.
+	public ExpressionBuilder(ExpressionCache cache, FunctionLibrary library) {
+		this.cache = cache;
+		this.library = library;
+	}
+
+	// Powers of ten for reading decimal numbers, and the most digits a number can have to be read with them.
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15,
+	};
+	private static final int MAX_FAST_DIGITS = POWERS_OF_TEN.length - 1;
+
+	// Get the operator type of the operator at position i in s, or -1 if there isn't one.
+	private static int scanOperator(String s, int i) {
+		switch (s.charAt(i)) {
+			case '+': return ExpressionProgram.OP_ADD;
+			case '-': return ExpressionProgram.OP_SUBTRACT;
+			case '*': return ExpressionProgram.OP_MULTIPLY;
+			case '/': return ExpressionProgram.OP_DIVIDE;
+			case '%': return ExpressionProgram.OP_MODULUS;
+			case '>': return ExpressionProgram.OP_MAX;
+			case '<': return ExpressionProgram.OP_MIN;
+			case '^':
+				// ^1/ is a root, and anything else is a power.
+				if (s.startsWith(ROOT, i))
+					return ExpressionProgram.OP_ROOT;
+				return ExpressionProgram.OP_POWER;
+			default: return -1;
 		}
+	}
 
-		// Add in MULTIPLY where there wasn't one.
-		if (numOperatorlessParens > 0) {
-			// Make the new array.
-			String[] oldInfixTokens = rawTokens;
-			rawTokens = new String[oldInfixTokens.length + numOperatorlessParens];
-
-			// The first token is always the same.
-			rawTokens[0] = oldInfixTokens[0];
-
-			// Loop through the rest, adding MULTIPLY.
-			for (int offset = 0, i = 1; i < oldInfixTokens.length; i++) {
-				if (oldInfixTokens[i].equals(LEFT_PAREN)) {
-					if (operatorType(oldInfixTokens[i - 1]) == -1) {
-						rawTokens[i + offset] = MULTIPLY;
-						offset++;
-					}
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
 
-				}
-				rawTokens[i + offset] = oldInfixTokens[i];
-			}
+	private static boolean isLetter(char c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+	}
+
+	private static boolean isWordChar(char c) {
+		return isLetter(c) || isDigit(c) || c == '_';
+	}
+
+	// Pop an operator stack code onto the output.
+	private static void emitOperator(int code, ArrayList<Token> out) {
+		if (code == NEGATE)
+			out.add(OPERATOR_TOKENS[ExpressionProgram.OP_MULTIPLY]);
+		else
+			out.add(OPERATOR_TOKENS[code]);
+	}
+
+	// Skip the whitespace in s starting at i. Returns the index of the first character that isn't whitespace.
+	private static int skipWhitespace(String s, int i) {
+		while (i < s.length() && Character.isWhitespace(s.charAt(i)))
+			i++;
+		return i;
+	}
+
+	// Check if the nearest left parenthesis on the operator stack is the parenthesis of a function call.
+	private static boolean inCall(int[] operatorStack, int sp) {
+		while (sp > 0) {
+			int code = operatorStack[--sp];
+			if (code == PAREN)
+				return false;
+			if (code == CALL)
+				return true;
 		}
-		
-		// Return the tokens.
-		return rawTokens;
+		return false;
 	}
-	
-	// Use a shunting yard to reorder infix tokens into RPN tokens.
-	private String[] shuntingYard(String[] infixTokens) {
-		// Count the number of parenthesis.
-		int numParens = 0;
-		for (int i = 0; i < infixTokens.length; i++) {
-			if (infixTokens[i].equals(LEFT_PAREN) || infixTokens[i].equals(RIGHT_PAREN))
-				numParens++;
+
+	// Pop operators off the stack until the nearest left parenthesis, and pop it too. If it was the parenthesis
+	// of a function call, emit the call. Returns the new size of the stack.
+	private int closeParen(int[] operatorStack, int sp, String[] callNames, int[] argCounts, ArrayList<Token> out) {
+		while (sp > 0) {
+			int code = operatorStack[--sp];
+			if (code == PAREN)
+				break;
+			if (code == CALL) {
+				int numCalls = operatorStack[--sp];
+				out.add(library.makeCall(callNames[numCalls], argCounts[numCalls]));
+				break;
+			}
+			emitOperator(code, out);
 		}
+		return sp;
+	}
 
-		// Make the output array. It has a length of infixTokens.length - numParens.
-		String[] rpnTokens = new String[infixTokens.length - numParens];
+	// Scan an infix string and use a shunting yard to turn it into RPN tokens in a single pass. A name followed by
+	// a parenthesis is a call if the library has a function with that name, and its arguments are separated by
+	// commas. Characters that aren't part of any token are skipped.
+	private Token[] makeTokens(String expString) {
+		int length = expString.length();
+		ArrayList<Token> out = new ArrayList<Token>(length);
+		int[] operatorStack = new int[length * 2 + 1]; // A '(' after an operand pushes twice.
+		int sp = 0;
 
-		// Make the operator stack.
-		ArrayDeque<String> operatorStack = new ArrayDeque<String>();
+		// The name and argument count of each call, in the order the calls were opened. A call's parenthesis
+		// sits on the operator stack on top of the call's index.
+		String[] callNames = new String[length];
+		int[] argCounts = new int[length];
+		int numCalls = 0;
 
-		// Loop through the tokens to shunting yard them.
-		int q = 0;
-		for (int i = 0; i < infixTokens.length; i++) {
-			// Get the operator type.
-			byte opType = operatorType(infixTokens[i]);
-			
-			// If the token is an operator, just look at Wikipedia.
-			if (opType != -1) {
-				while (operatorStack.size() > 0) {
-					String operator = operatorStack.peek();
-					if (precedence(infixTokens[i], operator) <= 0) {
-						rpnTokens[q] = operatorStack.pop();
-						q++;
+		// Whether the last token was an operand or a right parenthesis. If it was, a minus sign is a subtraction
+		// and an operand or left parenthesis right after it is an implied multiplication, ex. 3(x + 2) or 2x.
+		boolean afterOperand = false;
+
+		// Whether the number being read had a minus sign right before it where an operand was expected. Such a
+		// number is a negative literal, which binds tighter than any operator, so -2^2 is (-2)^2 as it always was.
+		boolean negativeLiteral = false;
+
+		int i = 0;
+		while (i < length) {
+			char c = expString.charAt(i);
+
+			// Numbers.
+			if (isDigit(c) || (c == '.' && i + 1 < length && isDigit(expString.charAt(i + 1)))) {
+				int start = i;
+				long mantissa = 0;
+				int numDigits = 0;
+				int numDecimals = 0;
+				boolean seenPoint = false;
+				while (i < length) {
+					c = expString.charAt(i);
+					if (isDigit(c)) {
+						mantissa = mantissa * 10 + (c - '0');
+						numDigits++;
+						if (seenPoint)
+							numDecimals++;
+					}
+					else if (c == '.' && !seenPoint && i + 1 < length && isDigit(expString.charAt(i + 1))) {
+						seenPoint = true;
 					}
 					else {
 						break;
 					}
+					i++;
 				}
-				operatorStack.push(infixTokens[i]);
+				// A mantissa of up to 15 digits and its power of ten are both exact doubles, so dividing them
+				// rounds once and the float is as close as the double allows. Longer numbers fall back to the library.
+				float value;
+				if (numDigits <= MAX_FAST_DIGITS)
+					value = (float)(mantissa / POWERS_OF_TEN[numDecimals]);
+				else
+					value = Float.parseFloat(expString.substring(start, i));
+				if (negativeLiteral) {
+					value = -value;
+					negativeLiteral = false;
+				}
+
+				if (afterOperand)
+					sp = pushOperator(ExpressionProgram.OP_MULTIPLY, operatorStack, sp, out);
+				out.add(new NumberToken(value));
+				afterOperand = true;
+				continue;
 			}
-			// If the token is a left parenthesis, push it onto the operator stack.
-			else if (infixTokens[i].equals(LEFT_PAREN)) {
-				operatorStack.push(infixTokens[i]);
+
+			// Variables.
+			if (isLetter(c)) {
+				int start = i;
+				while (i < length && isWordChar(expString.charAt(i)))
+					i++;
+				String name = expString.substring(start, i);
+				if (afterOperand)
+					sp = pushOperator(ExpressionProgram.OP_MULTIPLY, operatorStack, sp, out);
+
+				// Function calls.
+				int next = skipWhitespace(expString, i);
+				if (next < length && expString.charAt(next) == '(' && library.hasFunction(name)) {
+					callNames[numCalls] = name;
+					i = skipWhitespace(expString, next + 1);
+					argCounts[numCalls] = (i < length && expString.charAt(i) == ')')? 0 : 1;
+					operatorStack[sp++] = numCalls++;
+					operatorStack[sp++] = CALL;
+					afterOperand = false;
+					continue;
+				}
+
+				out.add(new VariableToken(name));
+				afterOperand = true;
+				continue;
 			}
-			// If the token is a right parenthesis, pop tokens off the stack until
-			// we reach a left parenthesis.
-			else if (infixTokens[i].equals(RIGHT_PAREN)) {
-				while (operatorStack.size() > 0) {
-					String operator = operatorStack.pop();
-					if (operator.equals(LEFT_PAREN)) {
-						break;
+
+			// Parentheses.
+			if (c == '(') {
+				if (afterOperand)
+					sp = pushOperator(ExpressionProgram.OP_MULTIPLY, operatorStack, sp, out);
+				operatorStack[sp++] = PAREN;
+				afterOperand = false;
+				i++;
+				continue;
+			}
+			if (c == ')') {
+				sp = closeParen(operatorStack, sp, callNames, argCounts, out);
+				afterOperand = true;
+				i++;
+				continue;
+			}
+			if (c == ',' && inCall(operatorStack, sp)) {
+				// Pop operators off the stack until we reach the parenthesis of the call, and count the argument.
+				while (operatorStack[sp - 1] != CALL)
+					emitOperator(operatorStack[--sp], out);
+				argCounts[operatorStack[sp - 2]]++;
+				afterOperand = false;
+				i++;
+				continue;
+			}
+
+			// Operators.
+			int opType = scanOperator(expString, i);
+			if (opType != -1) {
+				i += (opType == ExpressionProgram.OP_ROOT)? ROOT.length() : 1;
+				if (afterOperand) {
+					sp = pushOperator(opType, operatorStack, sp, out);
+					afterOperand = false;
+				}
+				else if (opType == ExpressionProgram.OP_SUBTRACT) {
+					if (i < length && (isDigit(expString.charAt(i))
+							|| (expString.charAt(i) == '.' && i + 1 < length && isDigit(expString.charAt(i + 1))))) {
+						// A minus sign stuck to a number makes a negative literal.
+						negativeLiteral = true;
 					}
 					else {
-						rpnTokens[q] = operator;
-						q++;
+						// Any other unary minus multiplies what follows by -1. Prefix operators don't pop anything.
+						out.add(NEGATIVE_ONE);
+						operatorStack[sp++] = NEGATE;
 					}
 				}
+				// A unary plus does nothing.
+				continue;
 			}
-			// If the token is a number or a variable, add it to rpnTokens.
-			else {
-				rpnTokens[q] = infixTokens[i];
-				q++;
-			}
+
+			// Skip anything else.
+			i++;
 		}
 
-		// Once all tokens are read, pop the stack onto the output array.
-		while (operatorStack.size() > 0) {
-			rpnTokens[q] = operatorStack.pop();
-			q++;
+		// Once all tokens are read, pop the stack onto the output, closing any calls that are still open.
+		while (sp > 0) {
+			int code = operatorStack[sp - 1];
+			if (code == PAREN || code == CALL)
+				sp = closeParen(operatorStack, sp, callNames, argCounts, out);
+			else
+				emitOperator(operatorStack[--sp], out);
 		}
-		
-		// Return the RPN tokens.
-		return rpnTokens;
+
+		return out.toArray(new Token[out.size()]);
 	}
-	
-	// Make tokens from raw tokens.
-	private Token[] makeTokens(String[] rawTokens) {
-		Token[] tokens = new Token[rawTokens.length];
-		
-		for (int i = 0; i < rawTokens.length; i++) {
-			// Check if the token is an operator.
-			byte opType = operatorType(rawTokens[i]);
-			if (opType != -1) {
-				tokens[i] = new OperatorToken(opType);
-				continue;
-			}
-			// Check if the token is a number.
-			numberMatcher.reset(rawTokens[i]);
-			if (numberMatcher.matches()) {
-				tokens[i] = new NumberToken(Float.parseFloat(rawTokens[i]));
-				continue;
-			}
-			// If it is neither an operator or a number, assume it is a variable.
-			tokens[i] = new VariableToken(rawTokens[i]);
+
+	// Push a binary operator onto the operator stack, first popping the operators that bind at least as tightly.
+	// Returns the new size of the stack.
+	private static int pushOperator(int opType, int[] operatorStack, int sp, ArrayList<Token> out) {
+		byte precedence = PRECEDENCE[opType];
+		while (sp > 0 && PRECEDENCE[operatorStack[sp - 1]] >= precedence) {
+			emitOperator(operatorStack[--sp], out);
 		}
-		
-		return tokens;
+		operatorStack[sp++] = opType;
+		return sp;
 	}
-	
+
 	// Get the type of operator a string represents. Returns -1 if it isn't an operator.
 	public byte operatorType(String s) {
 		for (byte i = 0; i < OPERATORS.length; i++) {
@@ -185,87 +317,30 @@ public class ExpressionBuilder {
 		}
 		return -1;
 	}
-	
-	// See if there are any variables in an array of raw tokens.
-	private boolean hasVariables(Token[] tokens) {
-		for (int i = 0; i < tokens.length; i++) {
-			if (tokens[i] instanceof VariableToken)
-				return true;
-		}
-		return false;
-	}
-	
+
 	// Make an expression from an infix string.
 	public Expression makeExpression(String expString) {
-		// Break the string into tokens that can be parsed into RPN.
-		String[] rawTokens = makeRawTokens(expString);
-		
-		// Reorder the infix tokens into RPN tokens.
-		rawTokens = shuntingYard(rawTokens);
-		
-		// Make tokens from the raw tokens.
-		Token[] tokens = makeTokens(rawTokens);
-		
-		// If there are no variables, precalculate the value of the expression
-		// and return a constant expression.
-		if (!hasVariables(tokens)) {
-			VariableExpression calc = new VariableExpression(tokens);
-			calc.evaluate(null);
-			return new ConstantExpression(calc.getValue());
+		// See if the string has already been parsed.
+		if (cache != null) {
+			Expression cached = cache.get(expString);
+			if (cached != null)
+				return cached;
 		}
-		// If there are variables, return a new variable expression.
-		return new VariableExpression(tokens);
+		
+		// Scan the string straight into RPN tokens.
+		Token[] tokens = makeTokens(expString);
+
+		// Simplify the tokens. If there are no variables, this precalculates the value of the expression
+		// and returns a constant expression. If there are variables, it returns a new variable expression.
+		Expression expression = ExpressionSimplifier.makeSimplifiedExpression(tokens);
+		if (cache != null)
+			expression = cache.put(expString, expression);
+		return expression;
 	}
 	
-	// Compare the precedence of op1 to op2. -1 if op1 is less precedent, 0 if equal, 1 is op1 is more precedent.
-	private int precedence(String op1, String op2) {
-		// Operators are, in order of precedence: POWER, ROOT, MULTIPLY, DIVIDE, MODULUS, ADD, SUBTRACT, MAX, MIN
-
-		// op1 equals POWER or ROOT
-		if (op1.equals(POWER) || op1.equals(ROOT)) {
-			if (op2.equals(POWER) || op2.equals(ROOT)) {
-				return 0;
-			}
-			else {
-				return 1;
-			}
-		}
-		// op1 equals MULTIPLY, DIVIDE, or MODULUS
-		else if (op1.equals(MULTIPLY) || op1.equals(DIVIDE) || op1.equals(MODULUS)) {
-			if (op2.equals(POWER) || op2.equals(ROOT)) {
-				return -1;
-			}
-			else if (op2.equals(MULTIPLY) || op2.equals(DIVIDE) || op2.equals(MODULUS)) {
-				return 0;
-			}
-			else {
-				return 1;
-			}
-		}
-		// op1 equals ADD or SUBTRACT
-		else if (op1.equals(ADD) || op1.equals(SUBTRACT)) {
-			if (op2.equals(POWER) || op2.equals(ROOT) || op2.equals(MULTIPLY) || op2.equals(DIVIDE) || op2.equals(MODULUS)) {
-				return -1;
-			}
-			else if (op2.equals(ADD) || op2.equals(SUBTRACT)) {
-				return 0;
-			}
-			else {
-				return 1;
-			}
-		}
-		// op1 equals MAX or MIN
-		else {
-			if (op2.equals(POWER) || op2.equals(ROOT) || op2.equals(MULTIPLY) || op2.equals(DIVIDE) || op2.equals(MODULUS) || op2.equals(ADD) || op2.equals(SUBTRACT)) {
-				return -1;
-			}
-			else if (op2.equals(MAX) || op2.equals(MIN)) {
-				return 0;
-			}
-			else {
-				return 1;
-			}
-		}
+	// Get the cache this builder uses, or null if it doesn't use one.
+	public ExpressionCache getCache() {
+		return cache;
 	}
 
 }
@@ -0,0 +1,92 @@
+// A bounded, thread-safe cache of parsed expressions keyed by their source text. Expressions are immutable,
+// so every caller shares the cached instance.
+
+package org.hafermath.expression;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class ExpressionCache {
+
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	// A cached expression and whether it has been used since the eviction hand last passed it.
+	private static final class Entry {
+		private final Expression expression;
+		private volatile boolean referenced;
+
+		private Entry(Expression expression) {
+			this.expression = expression;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> entries;		// The cached expressions. Reads don't lock.
+	private final int capacity;									// The most entries to keep.
+	private final Object evictionLock;							// Guards hand.
+	private Iterator<Map.Entry<String, Entry>> hand;			// The clock hand that eviction sweeps with.
+
+	// Constructors.
+	public ExpressionCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public ExpressionCache(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive.");
+		this.capacity = capacity;
+		entries = new ConcurrentHashMap<String, Entry>(Math.min(capacity, 1024) * 2);
+		evictionLock = new Object();
+	}
+
+	// Get the expression parsed from a source string, or null if it isn't cached.
+	public Expression get(String source) {
+		Entry entry = entries.get(source);
+		if (entry == null)
+			return null;
+		if (!entry.referenced)
+			entry.referenced = true;
+		return entry.expression;
+	}
+
+	// Cache the expression parsed from a source string. If another thread cached the same source first,
+	// its expression is kept. Returns the expression that callers should use.
+	public Expression put(String source, Expression expression) {
+		Entry entry = new Entry(expression);
+		Entry existing = entries.putIfAbsent(source, entry);
+		if (existing != null)
+			return existing.expression;
+		if (entries.size() > capacity)
+			evict();
+		return expression;
+	}
+
+	// Get the number of cached expressions.
+	public int size() {
+		return entries.size();
+	}
+
+	// Remove every cached expression.
+	public void clear() {
+		entries.clear();
+	}
+
+	// Evict entries until the cache is back within its capacity. This is the clock algorithm: entries that
+	// have been used since the hand last passed them get a second chance.
+	private void evict() {
+		synchronized (evictionLock) {
+			while (entries.size() > capacity) {
+				if (hand == null || !hand.hasNext())
+					hand = entries.entrySet().iterator();
+				if (!hand.hasNext())
+					return;
+				Entry entry = hand.next().getValue();
+				if (entry.referenced)
+					entry.referenced = false;
+				else
+					hand.remove();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,29 @@
+// A function that expressions can call that isn't built into ExpressionProgram. Functions are registered in a
+// FunctionLibrary under a name, and are called with their arguments in an array so that calls don't allocate.
+// Functions must not have side effects, since the simplifier calls them ahead of time on constant arguments.
+
+package org.hafermath.expression;
+
+public abstract class ExpressionFunction {
+
+	// Apply the function to the count arguments in args starting at first.
+	public abstract float apply(float[] args, int first, int count);
+
+	// Find the interval of values the function can have for arguments in intervals. The minimums of the arguments
+	// are in stack starting at minFirst and the maximums are in stack starting at maxFirst. The minimum of the
+	// result is written to out[0] and the maximum to out[1]. By default, arguments that are all single points
+	// give a single point, and anything else gives an unbounded interval.
+	public void applyInterval(float[] stack, int minFirst, int maxFirst, int count, float[] out) {
+		for (int i = 0; i < count; i++) {
+			if (stack[minFirst + i] != stack[maxFirst + i]) {
+				out[0] = Float.NEGATIVE_INFINITY;
+				out[1] = Float.POSITIVE_INFINITY;
+				return;
+			}
+		}
+		float value = apply(stack, minFirst, count);
+		out[0] = value;
+		out[1] = value;
+	}
+
+}
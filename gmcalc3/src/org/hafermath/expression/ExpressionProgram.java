@@ -0,0 +1,592 @@
+// A compiled form of an RPN expression: an opcode stream and a constant pool that run on an unboxed float stack.
+
+package org.hafermath.expression;
+
+import java.util.Arrays;
+
+import static org.hafermath.expression.Expression.*;
+
+public final class ExpressionProgram {
+
+	// Opcodes. The operator opcodes are the same as the operator types in Expression.OPERATORS.
+	public static final int OP_ADD = 0;
+	public static final int OP_SUBTRACT = 1;
+	public static final int OP_MULTIPLY = 2;
+	public static final int OP_DIVIDE = 3;
+	public static final int OP_POWER = 4;
+	public static final int OP_MODULUS = 5;
+	public static final int OP_MAX = 6;
+	public static final int OP_MIN = 7;
+	public static final int OP_ROOT = 8;
+	public static final int OP_FLOOR = 9;
+	public static final int OP_CEIL = 10;
+	public static final int OP_ABS = 11;
+	public static final int OP_CLAMP = 12;			// Takes the value, the minimum and the maximum.
+	public static final int OP_CONST = 16;			// Followed by an index into the constant pool.
+	public static final int OP_VAR = 17;			// Followed by an index into the variable table.
+	public static final int OP_SUM = 18;			// Followed by the number of operands.
+	public static final int OP_JUMP_IF_ZERO = 19;	// Followed by where to jump to. Pops the condition of an if.
+	public static final int OP_JUMP = 20;			// Followed by where to jump to.
+	public static final int OP_SELECT = 21;			// Ends an if. Picks a branch when both branches were evaluated.
+	public static final int OP_CALL = 22;			// Followed by an index into the function table and the number of arguments.
+
+	private final int[] code;						// The opcodes and their operands.
+	private final float[] constants;				// The constant pool.
+	private final String[] variables;				// The distinct variable names, in the order they first appear.
+	private final ExpressionFunction[] functions;	// The functions that are called that aren't built in.
+	private final int stackDepth;					// The deepest the stack gets while running.
+
+	// Get the number of operands a token takes.
+	private static int arityOf(Token t) {
+		if (t instanceof OperatorToken)
+			return 2;
+		if (t instanceof SumToken)
+			return ((SumToken)t).getArity();
+		if (t instanceof FunctionToken)
+			return ((FunctionToken)t).getArity();
+		return 0;
+	}
+
+	// Get the number of ints of code a token compiles to.
+	private static int codeLengthOf(Token t) {
+		if (t instanceof OperatorToken)
+			return 1;
+		if (t instanceof FunctionToken) {
+			switch (((FunctionToken)t).getOpcode()) {
+				case OP_SELECT: return 5;	// A conditional jump after the condition, a jump after the first branch, and a select.
+				case OP_CALL: return 3;
+				default: return 1;
+			}
+		}
+		return 2;
+	}
+
+	// Constructor. Compiles RPN tokens.
+	public ExpressionProgram(Token[] tokens) {
+		// Count the instructions, constants, variables and calls, and find the branches of each if. The root of
+		// each branch is marked with the index of its if times 2, plus 1 if it is the first branch.
+		int[] roots = new int[tokens.length];
+		int[] branchOf = new int[tokens.length];
+		Arrays.fill(branchOf, -1);
+		int numRoots = 0;
+		int codeLength = 0;
+		int numConstants = 0;
+		int numVarTokens = 0;
+		int numCalls = 0;
+		for (int i = 0; i < tokens.length; i++) {
+			Token t = tokens[i];
+			int arity = arityOf(t);
+			if (numRoots < arity || (t instanceof SumToken && arity < 1))
+				throw new IllegalArgumentException("Malformed expression: not enough operands for " + t);
+			numRoots -= arity;
+			if (t instanceof FunctionToken && ((FunctionToken)t).getOpcode() == OP_SELECT) {
+				branchOf[roots[numRoots]] = i * 2;
+				branchOf[roots[numRoots + 1]] = i * 2 + 1;
+			}
+			roots[numRoots++] = i;
+
+			codeLength += codeLengthOf(t);
+			if (t instanceof NumberToken)
+				numConstants++;
+			else if (t instanceof VariableToken)
+				numVarTokens++;
+			else if (t instanceof FunctionToken && ((FunctionToken)t).getOpcode() == OP_CALL)
+				numCalls++;
+		}
+		if (numRoots > 1)
+			throw new IllegalArgumentException("Malformed expression: too many operands");
+
+		// Emit the code, tracking how deep the stack gets. Conditions are counted as staying on the stack until
+		// the select, which is how programs run over batches and intervals, where both branches are evaluated.
+		int[] outCode = new int[codeLength];
+		float[] outConstants = new float[numConstants];
+		String[] varNames = new String[numVarTokens];
+		ExpressionFunction[] outFunctions = new ExpressionFunction[numCalls];
+		int[] pendingJumps = new int[tokens.length]; // The operand of the last jump emitted for each if.
+		int numVars = 0;
+		int pc = 0, c = 0, f = 0, depth = 0, maxDepth = 0;
+		for (int i = 0; i < tokens.length; i++) {
+			Token t = tokens[i];
+			if (t instanceof OperatorToken) {
+				outCode[pc++] = ((OperatorToken)t).getType();
+				depth--;
+			}
+			else if (t instanceof SumToken) {
+				int arity = ((SumToken)t).getArity();
+				outCode[pc++] = OP_SUM;
+				outCode[pc++] = arity;
+				depth -= arity - 1;
+			}
+			else if (t instanceof FunctionToken) {
+				FunctionToken function = (FunctionToken)t;
+				int opcode = function.getOpcode();
+				outCode[pc++] = opcode;
+				if (opcode == OP_SELECT) {
+					// Jump over the second branch after the first.
+					outCode[pendingJumps[i]] = pc;
+				}
+				else if (opcode == OP_CALL) {
+					outFunctions[f] = function.getFunction();
+					outCode[pc++] = f++;
+					outCode[pc++] = function.getArity();
+				}
+				depth -= function.getArity() - 1;
+			}
+			else if (t instanceof NumberToken) {
+				outConstants[c] = ((NumberToken)t).getNumber();
+				outCode[pc++] = OP_CONST;
+				outCode[pc++] = c++;
+				depth++;
+			}
+			else if (t instanceof VariableToken) {
+				// Each distinct variable only gets one slot in the variable table.
+				String varName = ((VariableToken)t).getVariableName();
+				int v = 0;
+				while (v < numVars && !varNames[v].equals(varName))
+					v++;
+				if (v == numVars)
+					varNames[numVars++] = varName;
+				outCode[pc++] = OP_VAR;
+				outCode[pc++] = v;
+				depth++;
+			}
+			if (depth > maxDepth)
+				maxDepth = depth;
+
+			// If this ends a branch of an if, jump to the right place.
+			if (branchOf[i] >= 0) {
+				int owner = branchOf[i] >> 1;
+				if ((branchOf[i] & 1) == 0) {
+					// After the condition, jump to the second branch if it is 0.
+					outCode[pc++] = OP_JUMP_IF_ZERO;
+					pendingJumps[owner] = pc++;
+				}
+				else {
+					// After the first branch, jump past the second branch. The second branch starts here.
+					outCode[pc++] = OP_JUMP;
+					outCode[pendingJumps[owner]] = pc + 1;
+					pendingJumps[owner] = pc++;
+				}
+			}
+		}
+
+		code = outCode;
+		constants = outConstants;
+		variables = (numVars == numVarTokens) ? varNames : Arrays.copyOf(varNames, numVars);
+		functions = outFunctions;
+		stackDepth = maxDepth;
+	}
+
+	// Get the distinct variables the program reads, in the order of their indices in the variable table.
+	public String[] getVariables() {
+		return variables;
+	}
+
+	// Get the size a stack must be to run this program.
+	public int getStackDepth() {
+		return stackDepth;
+	}
+
+	// Get the opcodes and their operands. The array must not be changed.
+	int[] getCode() {
+		return code;
+	}
+
+	// Get the constant pool. The array must not be changed.
+	float[] getConstants() {
+		return constants;
+	}
+
+	// Get the functions that OP_CALL indexes. The array must not be changed.
+	ExpressionFunction[] getFunctions() {
+		return functions;
+	}
+
+	// Run the program. The stack must be at least getStackDepth() long. The value of the variable at
+	// index i in getVariables() is read from values[slots[i]]. An empty program evaluates to 0.
+	public float run(float[] stack, float[] values, int[] slots) {
+		if (code.length == 0)
+			return 0;
+
+		int sp = 0;
+		int pc = 0;
+		while (pc < code.length) {
+			int op = code[pc++];
+			switch (op) {
+				case OP_CONST:
+					stack[sp++] = constants[code[pc++]];
+					break;
+				case OP_VAR:
+					stack[sp++] = values[slots[code[pc++]]];
+					break;
+				case OP_SUM: {
+					int arity = code[pc++];
+					int first = sp - arity;
+					float sum = stack[first];
+					for (int i = first + 1; i < sp; i++)
+						sum += stack[i];
+					stack[first] = sum;
+					sp = first + 1;
+					break;
+				}
+				case OP_JUMP_IF_ZERO:
+					if (stack[--sp] == 0)
+						pc = code[pc];
+					else
+						pc++;
+					break;
+				case OP_JUMP:
+					pc = code[pc];
+					break;
+				case OP_SELECT:
+					// Only the branch that was jumped to was evaluated, so its value is already on top.
+					break;
+				case OP_CALL: {
+					ExpressionFunction function = functions[code[pc++]];
+					int arity = code[pc++];
+					int first = sp - arity;
+					stack[first] = function.apply(stack, first, arity);
+					sp = first + 1;
+					break;
+				}
+				case OP_FLOOR:
+					stack[sp - 1] = (float) Math.floor(stack[sp - 1]);
+					break;
+				case OP_CEIL:
+					stack[sp - 1] = (float) Math.ceil(stack[sp - 1]);
+					break;
+				case OP_ABS:
+					stack[sp - 1] = Math.abs(stack[sp - 1]);
+					break;
+				case OP_CLAMP:
+					sp -= 2;
+					stack[sp - 1] = Math.min(Math.max(stack[sp - 1], stack[sp]), stack[sp + 1]);
+					break;
+				case OP_ADD:
+					sp--;
+					stack[sp - 1] = stack[sp - 1] + stack[sp];
+					break;
+				case OP_SUBTRACT:
+					sp--;
+					stack[sp - 1] = stack[sp - 1] - stack[sp];
+					break;
+				case OP_MULTIPLY:
+					sp--;
+					stack[sp - 1] = stack[sp - 1] * stack[sp];
+					break;
+				case OP_DIVIDE:
+					sp--;
+					stack[sp - 1] = stack[sp - 1] / stack[sp];
+					break;
+				case OP_POWER:
+					sp--;
+					stack[sp - 1] = (float) Math.pow(stack[sp - 1], stack[sp]);
+					break;
+				case OP_MODULUS:
+					sp--;
+					stack[sp - 1] = stack[sp - 1] % stack[sp];
+					break;
+				case OP_MAX:
+					sp--;
+					stack[sp - 1] = Math.max(stack[sp - 1], stack[sp]);
+					break;
+				case OP_MIN:
+					sp--;
+					stack[sp - 1] = Math.min(stack[sp - 1], stack[sp]);
+					break;
+				case OP_ROOT:
+					sp--;
+					stack[sp - 1] = (float) Math.pow(stack[sp - 1], 1.0 / stack[sp]);
+					break;
+				default:
+					sp--;
+					stack[sp - 1] = 0;
+					break;
+			}
+		}
+
+		// The last thing in the stack is the result.
+		return stack[0];
+	}
+
+	// Run the program over a batch of bindings at once. The value of the variable at index i in getVariables()
+	// for binding r is read from columns[slots[i]][r], and the result for binding r is written to results[r].
+	// The buffers, the stack, and the arguments of calls all come from the context, so a batch allocates nothing
+	// once the context has grown to fit it. The program runs one instruction at a time over every binding, so each
+	// instruction is a simple loop over arrays.
+	public void runBatch(EvaluationContext context, float[][] columns, int[] slots, float[] results, int count) {
+		if (code.length == 0) {
+			Arrays.fill(results, 0, count, 0);
+			return;
+		}
+		float[][] buffers = context.getBatchBuffers(stackDepth, count);
+
+		// Each entry of the stack is either a column or the buffer at the same depth, so an instruction can
+		// always write its result into the buffer at the depth of its first operand.
+		float[][] stack = context.getBatchStack(stackDepth);
+		int sp = 0;
+		int pc = 0;
+		while (pc < code.length) {
+			int op = code[pc++];
+			switch (op) {
+				case OP_CONST: {
+					float[] out = buffers[sp];
+					Arrays.fill(out, 0, count, constants[code[pc++]]);
+					stack[sp++] = out;
+					break;
+				}
+				case OP_VAR:
+					stack[sp++] = columns[slots[code[pc++]]];
+					break;
+				case OP_SUM: {
+					int arity = code[pc++];
+					int first = sp - arity;
+					float[] out = buffers[first];
+					float[] a = stack[first];
+					if (out != a)
+						System.arraycopy(a, 0, out, 0, count);
+					for (int q = first + 1; q < sp; q++) {
+						float[] b = stack[q];
+						for (int r = 0; r < count; r++)
+							out[r] += b[r];
+					}
+					stack[first] = out;
+					sp = first + 1;
+					break;
+				}
+				case OP_JUMP_IF_ZERO:
+				case OP_JUMP:
+					// Both branches are evaluated for every binding, and the select picks between them.
+					pc++;
+					break;
+				case OP_SELECT: {
+					sp -= 2;
+					float[] condition = stack[sp - 1];
+					float[] a = stack[sp];
+					float[] b = stack[sp + 1];
+					float[] out = buffers[sp - 1];
+					for (int r = 0; r < count; r++)
+						out[r] = (condition[r] != 0)? a[r] : b[r];
+					stack[sp - 1] = out;
+					break;
+				}
+				case OP_CALL: {
+					ExpressionFunction function = functions[code[pc++]];
+					int arity = code[pc++];
+					int first = sp - arity;
+					float[] out = buffers[first];
+					float[] args = context.getArguments(arity);
+					for (int r = 0; r < count; r++) {
+						for (int q = 0; q < arity; q++)
+							args[q] = stack[first + q][r];
+						out[r] = function.apply(args, 0, arity);
+					}
+					stack[first] = out;
+					sp = first + 1;
+					break;
+				}
+				case OP_FLOOR: {
+					float[] a = stack[sp - 1];
+					float[] out = buffers[sp - 1];
+					for (int r = 0; r < count; r++)
+						out[r] = (float) Math.floor(a[r]);
+					stack[sp - 1] = out;
+					break;
+				}
+				case OP_CEIL: {
+					float[] a = stack[sp - 1];
+					float[] out = buffers[sp - 1];
+					for (int r = 0; r < count; r++)
+						out[r] = (float) Math.ceil(a[r]);
+					stack[sp - 1] = out;
+					break;
+				}
+				case OP_ABS: {
+					float[] a = stack[sp - 1];
+					float[] out = buffers[sp - 1];
+					for (int r = 0; r < count; r++)
+						out[r] = Math.abs(a[r]);
+					stack[sp - 1] = out;
+					break;
+				}
+				case OP_CLAMP: {
+					sp -= 2;
+					float[] a = stack[sp - 1];
+					float[] min = stack[sp];
+					float[] max = stack[sp + 1];
+					float[] out = buffers[sp - 1];
+					for (int r = 0; r < count; r++)
+						out[r] = Math.min(Math.max(a[r], min[r]), max[r]);
+					stack[sp - 1] = out;
+					break;
+				}
+				default: {
+					sp--;
+					float[] a = stack[sp - 1];
+					float[] b = stack[sp];
+					float[] out = buffers[sp - 1];
+					switch (op) {
+						case OP_ADD:
+							for (int r = 0; r < count; r++)
+								out[r] = a[r] + b[r];
+							break;
+						case OP_SUBTRACT:
+							for (int r = 0; r < count; r++)
+								out[r] = a[r] - b[r];
+							break;
+						case OP_MULTIPLY:
+							for (int r = 0; r < count; r++)
+								out[r] = a[r] * b[r];
+							break;
+						case OP_DIVIDE:
+							for (int r = 0; r < count; r++)
+								out[r] = a[r] / b[r];
+							break;
+						case OP_POWER:
+							for (int r = 0; r < count; r++)
+								out[r] = (float) Math.pow(a[r], b[r]);
+							break;
+						case OP_MODULUS:
+							for (int r = 0; r < count; r++)
+								out[r] = a[r] % b[r];
+							break;
+						case OP_MAX:
+							for (int r = 0; r < count; r++)
+								out[r] = Math.max(a[r], b[r]);
+							break;
+						case OP_MIN:
+							for (int r = 0; r < count; r++)
+								out[r] = Math.min(a[r], b[r]);
+							break;
+						case OP_ROOT:
+							for (int r = 0; r < count; r++)
+								out[r] = (float) Math.pow(a[r], 1.0 / b[r]);
+							break;
+						default:
+							Arrays.fill(out, 0, count, 0);
+							break;
+					}
+					stack[sp - 1] = out;
+					break;
+				}
+			}
+		}
+
+		// The last thing in the stack is the result.
+		System.arraycopy(stack[0], 0, results, 0, count);
+	}
+
+	// Run the program over intervals of values. The variable at index i in getVariables() can have any value in
+	// [mins[slots[i]], maxs[slots[i]]], and the interval of every value the program can give for them is written
+	// to out[0] and out[1]. The stack must be at least twice getStackDepth() long. Each operator is applied to
+	// intervals as a whole, so the result is found in one pass, but a variable that is read more than once is
+	// treated as if each read could have a different value, which can make the result wider than it has to be.
+	public void runInterval(float[] stack, float[] mins, float[] maxs, int[] slots, float[] out) {
+		if (code.length == 0) {
+			out[0] = 0;
+			out[1] = 0;
+			return;
+		}
+
+		// The minimums are stored in the first half of the stack and the maximums in the second half.
+		int high = stackDepth;
+		int sp = 0;
+		int pc = 0;
+		while (pc < code.length) {
+			int op = code[pc++];
+			switch (op) {
+				case OP_CONST: {
+					float value = constants[code[pc++]];
+					stack[sp] = value;
+					stack[high + sp] = value;
+					sp++;
+					break;
+				}
+				case OP_VAR: {
+					int slot = slots[code[pc++]];
+					stack[sp] = mins[slot];
+					stack[high + sp] = maxs[slot];
+					sp++;
+					break;
+				}
+				case OP_SUM: {
+					int arity = code[pc++];
+					int first = sp - arity;
+					float min = stack[first];
+					float max = stack[high + first];
+					for (int i = first + 1; i < sp; i++) {
+						min += stack[i];
+						max += stack[high + i];
+					}
+					stack[first] = min;
+					stack[high + first] = max;
+					sp = first + 1;
+					break;
+				}
+				case OP_JUMP_IF_ZERO:
+				case OP_JUMP:
+					// Both branches are evaluated, and the select combines them.
+					pc++;
+					break;
+				case OP_SELECT:
+					sp -= 2;
+					IntervalMath.select(stack[sp - 1], stack[high + sp - 1], stack[sp], stack[high + sp],
+							stack[sp + 1], stack[high + sp + 1], out);
+					stack[sp - 1] = out[0];
+					stack[high + sp - 1] = out[1];
+					break;
+				case OP_CALL: {
+					ExpressionFunction function = functions[code[pc++]];
+					int arity = code[pc++];
+					int first = sp - arity;
+					function.applyInterval(stack, first, high + first, arity, out);
+					stack[first] = out[0];
+					stack[high + first] = out[1];
+					sp = first + 1;
+					break;
+				}
+				case OP_FLOOR:
+				case OP_CEIL:
+				case OP_ABS:
+					IntervalMath.operate(op, stack[sp - 1], stack[high + sp - 1], out);
+					stack[sp - 1] = out[0];
+					stack[high + sp - 1] = out[1];
+					break;
+				case OP_CLAMP:
+					sp -= 2;
+					IntervalMath.operate(OP_MAX, stack[sp - 1], stack[high + sp - 1], stack[sp], stack[high + sp], out);
+					IntervalMath.operate(OP_MIN, out[0], out[1], stack[sp + 1], stack[high + sp + 1], out);
+					stack[sp - 1] = out[0];
+					stack[high + sp - 1] = out[1];
+					break;
+				default:
+					sp--;
+					IntervalMath.operate(op, stack[sp - 1], stack[high + sp - 1], stack[sp], stack[high + sp], out);
+					stack[sp - 1] = out[0];
+					stack[high + sp - 1] = out[1];
+					break;
+			}
+		}
+
+		// The last thing in the stack is the result.
+		out[0] = stack[0];
+		out[1] = stack[high];
+	}
+
+	// Apply a binary operator to two values.
+	public static float operate(int op, float value1, float value2) {
+		switch (op) {
+			case OP_ADD: return value1 + value2;
+			case OP_SUBTRACT: return value1 - value2;
+			case OP_MULTIPLY: return value1 * value2;
+			case OP_DIVIDE: return value1 / value2;
+			case OP_POWER: return (float) Math.pow(value1, value2);
+			case OP_MODULUS: return value1 % value2;
+			case OP_MAX: return Math.max(value1, value2);
+			case OP_MIN: return Math.min(value1, value2);
+			case OP_ROOT: return (float) Math.pow(value1, 1.0 / value2);
+			default: return 0;
+		}
+	}
+
+}
@@ -0,0 +1,287 @@
+// Simplifies expressions in RPN: folds constants, flattens nested sums into a single n-ary sum,
+// and combines repeated terms into a coefficient times the term.
+
+package org.hafermath.expression;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import static org.hafermath.expression.Expression.*;
+
+public final class ExpressionSimplifier {
+
+	// A term of a sum: a subexpression and the number it is multiplied by.
+	private static final class Term {
+		private final int start, end; // The tokens of the subexpression are [start, end].
+		private float coefficient;
+
+		private Term(int start, int end, float coefficient) {
+			this.start = start;
+			this.end = end;
+			this.coefficient = coefficient;
+		}
+	}
+
+	private final ArrayList<Token> folded;				// The tokens after constant folding.
+	private final int[] starts;							// The index in folded where the subexpression ending at each token starts.
+	private final LinkedHashMap<String, Term> terms;	// The non-constant terms of the sum, keyed by their tokens.
+	private float constant;								// The sum of the constant terms.
+
+	private ExpressionSimplifier(int numTokens) {
+		folded = new ArrayList<Token>(numTokens);
+		starts = new int[numTokens];
+		terms = new LinkedHashMap<String, Term>();
+		constant = 0;
+	}
+
+	// Simplify RPN tokens.
+	public static Token[] simplify(Token[] tokens) {
+		if (tokens.length == 0)
+			return tokens;
+		ExpressionSimplifier simplifier = new ExpressionSimplifier(tokens.length);
+		int root = simplifier.foldConstants(tokens);
+		simplifier.collect(root, 1);
+		return simplifier.emit();
+	}
+
+	// Simplify RPN tokens and make an expression from them. If no variables are left,
+	// the expression is a constant.
+	public static Expression makeSimplifiedExpression(Token[] tokens) {
+		Token[] simplified = simplify(tokens);
+		for (int i = 0; i < simplified.length; i++) {
+			if (simplified[i] instanceof VariableToken)
+				return new VariableExpression(simplified);
+		}
+		ExpressionProgram program = new ExpressionProgram(simplified);
+		return new ConstantExpression(program.run(new float[program.getStackDepth()], null, null));
+	}
+
+	// Copy the tokens into folded, replacing every operation on constants with its result.
+	// Returns the index of the root of the expression.
+	private int foldConstants(Token[] tokens) {
+		int[] roots = new int[tokens.length]; // A stack of the roots of the subexpressions so far.
+		int numRoots = 0;
+		for (int i = 0; i < tokens.length; i++) {
+			Token t = tokens[i];
+			int arity;
+			if (t instanceof OperatorToken)
+				arity = 2;
+			else if (t instanceof SumToken)
+				arity = ((SumToken)t).getArity();
+			else if (t instanceof FunctionToken)
+				arity = ((FunctionToken)t).getArity();
+			else
+				arity = 0;
+			if (numRoots < arity || (t instanceof SumToken && arity < 1))
+				throw new IllegalArgumentException("Malformed expression: not enough operands for " + t);
+
+			// See if all the operands are numbers.
+			boolean allNumbers = arity > 0;
+			for (int q = numRoots - arity; q < numRoots && allNumbers; q++)
+				allNumbers = folded.get(roots[q]) instanceof NumberToken;
+			numRoots -= arity;
+
+			if (allNumbers) {
+				// Replace the operands with the result.
+				int first = roots[numRoots];
+				float value;
+				if (t instanceof OperatorToken) {
+					float value1 = ((NumberToken)folded.get(first)).getNumber();
+					float value2 = ((NumberToken)folded.get(first + 1)).getNumber();
+					value = ((OperatorToken)t).operate(value1, value2);
+				}
+				else if (t instanceof FunctionToken) {
+					value = evaluateCall((FunctionToken)t, first);
+				}
+				else {
+					value = ((NumberToken)folded.get(first)).getNumber();
+					for (int q = first + 1; q < first + arity; q++)
+						value += ((NumberToken)folded.get(q)).getNumber();
+				}
+				while (folded.size() > first)
+					folded.remove(folded.size() - 1);
+				folded.add(new NumberToken(value));
+				starts[first] = first;
+			}
+			else if (t instanceof FunctionToken && ((FunctionToken)t).getOpcode() == ExpressionProgram.OP_SELECT
+					&& folded.get(roots[numRoots]) instanceof NumberToken) {
+				// An if with a constant condition is replaced with the branch it picks.
+				float condition = ((NumberToken)folded.get(roots[numRoots])).getNumber();
+				int branch = roots[numRoots + ((condition == 0)? 2 : 1)];
+				keepOnly(roots[numRoots], starts[branch], branch);
+			}
+			else {
+				int index = folded.size();
+				folded.add(t);
+				starts[index] = (arity > 0)? starts[roots[numRoots]] : index;
+			}
+			roots[numRoots++] = folded.size() - 1;
+		}
+		if (numRoots != 1)
+			throw new IllegalArgumentException("Malformed expression: too many operands");
+		return roots[0];
+	}
+
+	// Call a function on the numbers in folded starting at first.
+	private float evaluateCall(FunctionToken t, int first) {
+		Token[] call = new Token[t.getArity() + 1];
+		for (int q = 0; q < t.getArity(); q++)
+			call[q] = folded.get(first + q);
+		call[call.length - 1] = t;
+		ExpressionProgram program = new ExpressionProgram(call);
+		return program.run(new float[program.getStackDepth()], null, null);
+	}
+
+	// Replace everything in folded from index from onward with the subexpression [start, end], which is in that range.
+	private void keepOnly(int from, int start, int end) {
+		int shift = start - from;
+		for (int q = start; q <= end; q++) {
+			folded.set(q - shift, folded.get(q));
+			starts[q - shift] = starts[q] - shift;
+		}
+		while (folded.size() > end - shift + 1)
+			folded.remove(folded.size() - 1);
+	}
+
+	// Check if the subexpression with the given root is a sum or a difference.
+	private boolean isSum(int root) {
+		Token t = folded.get(root);
+		if (t instanceof SumToken)
+			return true;
+		if (t instanceof OperatorToken) {
+			int type = ((OperatorToken)t).getType();
+			return type == ExpressionProgram.OP_ADD || type == ExpressionProgram.OP_SUBTRACT;
+		}
+		return false;
+	}
+
+	// Collect the terms of the subexpression with the given root, multiplied by coefficient.
+	private void collect(int root, float coefficient) {
+		Token t = folded.get(root);
+
+		// Numbers are added into the constant.
+		if (t instanceof NumberToken) {
+			constant += coefficient * ((NumberToken)t).getNumber();
+			return;
+		}
+
+		// The terms of sums are collected separately.
+		if (t instanceof SumToken) {
+			int arity = ((SumToken)t).getArity();
+			int[] operands = new int[arity];
+			for (int operand = root - 1, q = arity - 1; q >= 0; q--) {
+				operands[q] = operand;
+				operand = starts[operand] - 1;
+			}
+			for (int q = 0; q < arity; q++)
+				collect(operands[q], coefficient);
+			return;
+		}
+		if (t instanceof OperatorToken) {
+			int type = ((OperatorToken)t).getType();
+			int right = root - 1;
+			int left = starts[right] - 1;
+			if (type == ExpressionProgram.OP_ADD) {
+				collect(left, coefficient);
+				collect(right, coefficient);
+				return;
+			}
+			if (type == ExpressionProgram.OP_SUBTRACT) {
+				collect(left, coefficient);
+				collect(right, -coefficient);
+				return;
+			}
+			// A product with a number becomes part of the coefficient. Sums are not distributed over,
+			// so that they stay as small as they are.
+			if (type == ExpressionProgram.OP_MULTIPLY) {
+				if (folded.get(right) instanceof NumberToken) {
+					float factor = ((NumberToken)folded.get(right)).getNumber();
+					if (isSum(left))
+						addTerm(left, coefficient * factor);
+					else
+						collect(left, coefficient * factor);
+					return;
+				}
+				if (folded.get(left) instanceof NumberToken) {
+					float factor = ((NumberToken)folded.get(left)).getNumber();
+					if (isSum(right))
+						addTerm(right, coefficient * factor);
+					else
+						collect(right, coefficient * factor);
+					return;
+				}
+			}
+		}
+
+		// Anything else is a term of its own.
+		addTerm(root, coefficient);
+	}
+
+	// Add a subexpression to the terms, combining it with an identical term if there is one.
+	private void addTerm(int root, float coefficient) {
+		int start = starts[root];
+		StringBuilder key = new StringBuilder();
+		for (int i = start; i <= root; i++) {
+			key.append(folded.get(i).toString());
+			key.append(' ');
+		}
+		String keyString = key.toString();
+		Term term = terms.get(keyString);
+		if (term == null)
+			terms.put(keyString, new Term(start, root, coefficient));
+		else
+			term.coefficient += coefficient;
+	}
+
+	// Add a term's tokens to out, multiplied by the absolute value of its coefficient.
+	private void emitTerm(ArrayList<Token> out, Term term) {
+		for (int i = term.start; i <= term.end; i++)
+			out.add(folded.get(i));
+		float magnitude = Math.abs(term.coefficient);
+		if (magnitude != 1) {
+			out.add(new NumberToken(magnitude));
+			out.add(new OperatorToken((byte)ExpressionProgram.OP_MULTIPLY));
+		}
+	}
+
+	// Turn the collected terms back into RPN: a sum of the positive terms followed by a subtraction
+	// for each negative term. Terms with a coefficient of 0 are dropped. NaN counts as positive so
+	// that it isn't lost.
+	private Token[] emit() {
+		ArrayList<Token> out = new ArrayList<Token>(folded.size());
+
+		// Add the positive terms.
+		int numPositive = 0;
+		for (Term term : terms.values()) {
+			if (!(term.coefficient <= 0)) {
+				emitTerm(out, term);
+				numPositive++;
+			}
+		}
+		if (!(constant <= 0)) {
+			out.add(new NumberToken(constant));
+			numPositive++;
+		}
+		if (numPositive == 0)
+			out.add(new NumberToken(0));
+		else if (numPositive == 2)
+			out.add(new OperatorToken((byte)ExpressionProgram.OP_ADD));
+		else if (numPositive > 2)
+			out.add(new SumToken(numPositive));
+
+		// Subtract the negative terms.
+		for (Term term : terms.values()) {
+			if (term.coefficient < 0) {
+				emitTerm(out, term);
+				out.add(new OperatorToken((byte)ExpressionProgram.OP_SUBTRACT));
+			}
+		}
+		if (constant < 0) {
+			out.add(new NumberToken(-constant));
+			out.add(new OperatorToken((byte)ExpressionProgram.OP_SUBTRACT));
+		}
+
+		return out.toArray(new Token[out.size()]);
+	}
+
+}
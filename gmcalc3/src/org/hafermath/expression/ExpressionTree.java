@@ -0,0 +1,309 @@
+// A compiled form of an expression program as a tree of small node objects, one per operation. Each node
+// calls straight into its operands, so there is no opcode dispatch or stack traffic. The calls between nodes
+// are virtual, so a node only gets inlined where its call site sees few kinds of nodes. Every node does exactly
+// the float arithmetic the program does, in the same order, so a tree always gives the same result as the
+// program it was built from.
+
+package org.hafermath.expression;
+
+public final class ExpressionTree {
+
+	// A node of the tree. The value of the variable at index i in the program's variable table is
+	// read from values[slots[i]].
+	private static abstract class Node {
+		abstract float eval(float[] values, int[] slots);
+	}
+
+	private static final class ConstNode extends Node {
+		private final float value;
+		private ConstNode(float value) { this.value = value; }
+		@Override
+		float eval(float[] values, int[] slots) { return value; }
+	}
+
+	private static final class VarNode extends Node {
+		private final int index;
+		private VarNode(int index) { this.index = index; }
+		@Override
+		float eval(float[] values, int[] slots) { return values[slots[index]]; }
+	}
+
+	private static final class SumNode extends Node {
+		private final Node[] operands;
+		private SumNode(Node[] operands) { this.operands = operands; }
+		@Override
+		float eval(float[] values, int[] slots) {
+			float sum = operands[0].eval(values, slots);
+			for (int i = 1; i < operands.length; i++)
+				sum += operands[i].eval(values, slots);
+			return sum;
+		}
+	}
+
+	// A binary operator. Each operator gets its own class so that its arithmetic is a plain operation rather than a
+	// switch on the operator type. The calls into the operands still dispatch over every kind of node.
+	private static abstract class BinaryNode extends Node {
+		final Node left, right;
+		BinaryNode(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+	}
+
+	private static final class AddNode extends BinaryNode {
+		private AddNode(Node left, Node right) { super(left, right); }
+		@Override
+		float eval(float[] values, int[] slots) { return left.eval(values, slots) + right.eval(values, slots); }
+	}
+
+	private static final class SubtractNode extends BinaryNode {
+		private SubtractNode(Node left, Node right) { super(left, right); }
+		@Override
+		float eval(float[] values, int[] slots) { return left.eval(values, slots) - right.eval(values, slots); }
+	}
+
+	private static final class MultiplyNode extends BinaryNode {
+		private MultiplyNode(Node left, Node right) { super(left, right); }
+		@Override
+		float eval(float[] values, int[] slots) { return left.eval(values, slots) * right.eval(values, slots); }
+	}
+
+	private static final class DivideNode extends BinaryNode {
+		private DivideNode(Node left, Node right) { super(left, right); }
+		@Override
+		float eval(float[] values, int[] slots) { return left.eval(values, slots) / right.eval(values, slots); }
+	}
+
+	private static final class PowerNode extends BinaryNode {
+		private PowerNode(Node left, Node right) { super(left, right); }
+		@Override
+		float eval(float[] values, int[] slots) {
+			return (float) Math.pow(left.eval(values, slots), right.eval(values, slots));
+		}
+	}
+
+	private static final class ModulusNode extends BinaryNode {
+		private ModulusNode(Node left, Node right) { super(left, right); }
+		@Override
+		float eval(float[] values, int[] slots) { return left.eval(values, slots) % right.eval(values, slots); }
+	}
+
+	private static final class MaxNode extends BinaryNode {
+		private MaxNode(Node left, Node right) { super(left, right); }
+		@Override
+		float eval(float[] values, int[] slots) { return Math.max(left.eval(values, slots), right.eval(values, slots)); }
+	}
+
+	private static final class MinNode extends BinaryNode {
+		private MinNode(Node left, Node right) { super(left, right); }
+		@Override
+		float eval(float[] values, int[] slots) { return Math.min(left.eval(values, slots), right.eval(values, slots)); }
+	}
+
+	private static final class RootNode extends BinaryNode {
+		private RootNode(Node left, Node right) { super(left, right); }
+		@Override
+		float eval(float[] values, int[] slots) {
+			return (float) Math.pow(left.eval(values, slots), 1.0 / right.eval(values, slots));
+		}
+	}
+
+	private static final class FloorNode extends Node {
+		private final Node operand;
+		private FloorNode(Node operand) { this.operand = operand; }
+		@Override
+		float eval(float[] values, int[] slots) { return (float) Math.floor(operand.eval(values, slots)); }
+	}
+
+	private static final class CeilNode extends Node {
+		private final Node operand;
+		private CeilNode(Node operand) { this.operand = operand; }
+		@Override
+		float eval(float[] values, int[] slots) { return (float) Math.ceil(operand.eval(values, slots)); }
+	}
+
+	private static final class AbsNode extends Node {
+		private final Node operand;
+		private AbsNode(Node operand) { this.operand = operand; }
+		@Override
+		float eval(float[] values, int[] slots) { return Math.abs(operand.eval(values, slots)); }
+	}
+
+	private static final class ClampNode extends Node {
+		private final Node value, min, max;
+		private ClampNode(Node value, Node min, Node max) {
+			this.value = value;
+			this.min = min;
+			this.max = max;
+		}
+		@Override
+		float eval(float[] values, int[] slots) {
+			return Math.min(Math.max(value.eval(values, slots), min.eval(values, slots)), max.eval(values, slots));
+		}
+	}
+
+	// Only the branch that is picked is evaluated.
+	private static final class IfNode extends Node {
+		private final Node condition, ifTrue, ifFalse;
+		private IfNode(Node condition, Node ifTrue, Node ifFalse) {
+			this.condition = condition;
+			this.ifTrue = ifTrue;
+			this.ifFalse = ifFalse;
+		}
+		@Override
+		float eval(float[] values, int[] slots) {
+			if (condition.eval(values, slots) == 0)
+				return ifFalse.eval(values, slots);
+			return ifTrue.eval(values, slots);
+		}
+	}
+
+	private static final class CallNode extends Node {
+		private final ExpressionFunction function;
+		private final Node[] args;
+		private CallNode(ExpressionFunction function, Node[] args) {
+			this.function = function;
+			this.args = args;
+		}
+		@Override
+		float eval(float[] values, int[] slots) {
+			// Reserve room for the arguments on this thread's stack first, since they can have calls of their own.
+			ArgumentStack stack = ARGUMENT_STACKS.get();
+			int first = stack.reserve(args.length);
+			try {
+				for (int i = 0; i < args.length; i++) {
+					float value = args[i].eval(values, slots);
+					stack.values[first + i] = value;
+				}
+				return function.apply(stack.values, first, args.length);
+			}
+			finally {
+				stack.top = first;
+			}
+		}
+	}
+
+	// The arguments of the calls being evaluated on a thread. Trees are shared between threads by the expression
+	// cache, so call nodes can't have buffers of their own.
+	private static final class ArgumentStack {
+		private float[] values = new float[16];
+		private int top;
+
+		// Make room for some values on top of the stack, and get the index of the first.
+		private int reserve(int count) {
+			int first = top;
+			top += count;
+			if (top > values.length) {
+				float[] grown = new float[Math.max(top, values.length * 2)];
+				System.arraycopy(values, 0, grown, 0, first);
+				values = grown;
+			}
+			return first;
+		}
+	}
+
+	private static final ThreadLocal<ArgumentStack> ARGUMENT_STACKS = new ThreadLocal<ArgumentStack>() {
+		@Override
+		protected ArgumentStack initialValue() {
+			return new ArgumentStack();
+		}
+	};
+
+	private final Node root; // The root of the tree.
+
+	// Constructor. Builds the tree by running the program's code on a stack of nodes instead of values.
+	public ExpressionTree(ExpressionProgram program) {
+		int[] code = program.getCode();
+		float[] constants = program.getConstants();
+		ExpressionFunction[] functions = program.getFunctions();
+		if (code.length == 0) {
+			root = new ConstNode(0);
+			return;
+		}
+
+		Node[] stack = new Node[program.getStackDepth()];
+		int sp = 0;
+		int pc = 0;
+		while (pc < code.length) {
+			int op = code[pc++];
+			switch (op) {
+				case ExpressionProgram.OP_CONST:
+					stack[sp++] = new ConstNode(constants[code[pc++]]);
+					break;
+				case ExpressionProgram.OP_VAR:
+					stack[sp++] = new VarNode(code[pc++]);
+					break;
+				case ExpressionProgram.OP_SUM: {
+					int arity = code[pc++];
+					Node[] operands = new Node[arity];
+					System.arraycopy(stack, sp - arity, operands, 0, arity);
+					sp -= arity;
+					stack[sp++] = (arity == 1)? operands[0] : new SumNode(operands);
+					break;
+				}
+				case ExpressionProgram.OP_JUMP_IF_ZERO:
+				case ExpressionProgram.OP_JUMP:
+					// The branches are built in order, and the select puts them under an if node.
+					pc++;
+					break;
+				case ExpressionProgram.OP_SELECT: {
+					sp -= 2;
+					stack[sp - 1] = new IfNode(stack[sp - 1], stack[sp], stack[sp + 1]);
+					break;
+				}
+				case ExpressionProgram.OP_CALL: {
+					ExpressionFunction function = functions[code[pc++]];
+					int arity = code[pc++];
+					Node[] args = new Node[arity];
+					System.arraycopy(stack, sp - arity, args, 0, arity);
+					sp -= arity;
+					stack[sp++] = new CallNode(function, args);
+					break;
+				}
+				case ExpressionProgram.OP_FLOOR:
+					stack[sp - 1] = new FloorNode(stack[sp - 1]);
+					break;
+				case ExpressionProgram.OP_CEIL:
+					stack[sp - 1] = new CeilNode(stack[sp - 1]);
+					break;
+				case ExpressionProgram.OP_ABS:
+					stack[sp - 1] = new AbsNode(stack[sp - 1]);
+					break;
+				case ExpressionProgram.OP_CLAMP:
+					sp -= 2;
+					stack[sp - 1] = new ClampNode(stack[sp - 1], stack[sp], stack[sp + 1]);
+					break;
+				default: {
+					Node right = stack[--sp];
+					Node left = stack[sp - 1];
+					stack[sp - 1] = makeOperator(op, left, right);
+					break;
+				}
+			}
+		}
+		root = stack[0];
+	}
+
+	// Make the node for a binary operator.
+	private static Node makeOperator(int op, Node left, Node right) {
+		switch (op) {
+			case ExpressionProgram.OP_ADD: return new AddNode(left, right);
+			case ExpressionProgram.OP_SUBTRACT: return new SubtractNode(left, right);
+			case ExpressionProgram.OP_MULTIPLY: return new MultiplyNode(left, right);
+			case ExpressionProgram.OP_DIVIDE: return new DivideNode(left, right);
+			case ExpressionProgram.OP_POWER: return new PowerNode(left, right);
+			case ExpressionProgram.OP_MODULUS: return new ModulusNode(left, right);
+			case ExpressionProgram.OP_MAX: return new MaxNode(left, right);
+			case ExpressionProgram.OP_MIN: return new MinNode(left, right);
+			case ExpressionProgram.OP_ROOT: return new RootNode(left, right);
+			default: return new ConstNode(0);
+		}
+	}
+
+	// Evaluate the tree. The value of the variable at index i in the program's getVariables() is read
+	// from values[slots[i]], the same as ExpressionProgram.run().
+	public float evaluate(float[] values, int[] slots) {
+		return root.eval(values, slots);
+	}
+
+}
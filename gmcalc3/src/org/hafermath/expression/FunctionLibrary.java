@@ -0,0 +1,88 @@
+// A registry of the functions expressions can call by name, eg. clamp(x, 0, 10). The common functions are built
+// into ExpressionProgram as opcodes, and other functions can be registered as ExpressionFunctions. Functions should
+// all be registered before the library is given to an ExpressionBuilder, after which it can be shared between threads.
+
+package org.hafermath.expression;
+
+import java.util.HashMap;
+
+import static org.hafermath.expression.Expression.*;
+
+public final class FunctionLibrary {
+
+	// The names of the built in functions.
+	public static final String FLOOR = "floor";	// floor(x) rounds x down.
+	public static final String CEIL = "ceil";	// ceil(x) rounds x up.
+	public static final String ABS = "abs";		// abs(x) is the magnitude of x.
+	public static final String CLAMP = "clamp";	// clamp(x, min, max) is x limited to [min, max].
+	public static final String IF = "if";		// if(c, a, b) is a if c isn't 0 and b otherwise. Only one of a and b is evaluated.
+	public static final String SUM = "sum";		// sum(a, b, ...) adds any number of values.
+
+	// The library with only the built in functions.
+	private static final FunctionLibrary DEFAULT = new FunctionLibrary(true);
+
+	// A function in the library.
+	private static final class Entry {
+		private final int opcode;					// The opcode calls compile to.
+		private final int minArity, maxArity;		// The range of argument counts the function accepts.
+		private final ExpressionFunction function;	// The function, if it isn't built in.
+
+		private Entry(int opcode, int minArity, int maxArity, ExpressionFunction function) {
+			this.opcode = opcode;
+			this.minArity = minArity;
+			this.maxArity = maxArity;
+			this.function = function;
+		}
+	}
+
+	private final HashMap<String, Entry> functions;	// The functions, keyed by name.
+	private final boolean locked;					// If true, no more functions can be registered.
+
+	// Constructors. A new library starts with the built in functions.
+	public FunctionLibrary() {
+		this(false);
+	}
+
+	private FunctionLibrary(boolean locked) {
+		functions = new HashMap<String, Entry>();
+		functions.put(FLOOR, new Entry(ExpressionProgram.OP_FLOOR, 1, 1, null));
+		functions.put(CEIL, new Entry(ExpressionProgram.OP_CEIL, 1, 1, null));
+		functions.put(ABS, new Entry(ExpressionProgram.OP_ABS, 1, 1, null));
+		functions.put(CLAMP, new Entry(ExpressionProgram.OP_CLAMP, 3, 3, null));
+		functions.put(IF, new Entry(ExpressionProgram.OP_SELECT, 3, 3, null));
+		functions.put(SUM, new Entry(ExpressionProgram.OP_SUM, 1, Integer.MAX_VALUE, null));
+		this.locked = locked;
+	}
+
+	// Get the library with only the built in functions. It can't be registered into.
+	public static FunctionLibrary getDefault() {
+		return DEFAULT;
+	}
+
+	// Register a function that takes from minArity to maxArity arguments, replacing any function with the same name.
+	public void register(String name, int minArity, int maxArity, ExpressionFunction function) {
+		if (locked)
+			throw new UnsupportedOperationException("The default function library can't be changed.");
+		if (minArity < 0 || maxArity < minArity)
+			throw new IllegalArgumentException("Invalid argument counts for " + name);
+		functions.put(name, new Entry(ExpressionProgram.OP_CALL, minArity, maxArity, function));
+	}
+
+	// Check if there is a function with a name.
+	public boolean hasFunction(String name) {
+		return functions.containsKey(name);
+	}
+
+	// Make the token for a call to a function with a number of arguments. Sums become sum tokens.
+	public Token makeCall(String name, int arity) {
+		Entry entry = functions.get(name);
+		if (entry == null)
+			throw new IllegalArgumentException("Malformed expression: unknown function " + name);
+		if (arity < entry.minArity || arity > entry.maxArity)
+			throw new IllegalArgumentException("Malformed expression: " + name + " can't take " + arity + " arguments");
+		if (entry.opcode == ExpressionProgram.OP_SUM)
+			return new SumToken(arity);
+		return new FunctionToken(name, entry.opcode, arity, entry.function);
+	}
+
+}
@@ -0,0 +1,224 @@
+// Interval arithmetic for the operators and built in functions. Each method takes the intervals of the operands,
+// eg. [a, b] and [c, d], and writes the interval of every result the operator can give for operands in them to
+// out[0] and out[1]. Endpoints are computed with the same float operations as ExpressionProgram, so an interval
+// of single points always gives exactly the point that evaluating the operator would. If an operator can give
+// NaN inside the intervals, the result is [NaN, NaN].
+
+package org.hafermath.expression;
+
+final class IntervalMath {
+
+	private IntervalMath() {
+	}
+
+	// Set out to an interval.
+	private static void set(float[] out, float min, float max) {
+		out[0] = min;
+		out[1] = max;
+	}
+
+	// Set out to the smallest interval that holds some values, or to NaN if any of them are NaN.
+	private static void hull(float[] out, float v1, float v2, float v3, float v4) {
+		if (v1 != v1 || v2 != v2 || v3 != v3 || v4 != v4) {
+			set(out, Float.NaN, Float.NaN);
+			return;
+		}
+		set(out, Math.min(Math.min(v1, v2), Math.min(v3, v4)), Math.max(Math.max(v1, v2), Math.max(v3, v4)));
+	}
+
+	// Apply an operator to two intervals.
+	static void operate(int op, float a, float b, float c, float d, float[] out) {
+		if (a != a || b != b || c != c || d != d) {
+			set(out, Float.NaN, Float.NaN);
+			return;
+		}
+		switch (op) {
+			case ExpressionProgram.OP_ADD:
+				set(out, a + c, b + d);
+				break;
+			case ExpressionProgram.OP_SUBTRACT:
+				set(out, a - d, b - c);
+				break;
+			case ExpressionProgram.OP_MULTIPLY:
+				hull(out, a * c, a * d, b * c, b * d);
+				break;
+			case ExpressionProgram.OP_DIVIDE:
+				divide(a, b, c, d, out);
+				break;
+			case ExpressionProgram.OP_POWER:
+				power(a, b, c, d, out);
+				break;
+			case ExpressionProgram.OP_MODULUS:
+				modulus(a, b, c, d, out);
+				break;
+			case ExpressionProgram.OP_MAX:
+				set(out, Math.max(a, c), Math.max(b, d));
+				break;
+			case ExpressionProgram.OP_MIN:
+				set(out, Math.min(a, c), Math.min(b, d));
+				break;
+			case ExpressionProgram.OP_ROOT:
+				root(a, b, c, d, out);
+				break;
+			default:
+				set(out, 0, 0);
+				break;
+		}
+	}
+
+	// Apply a function of one value to an interval.
+	static void operate(int op, float a, float b, float[] out) {
+		if (a != a || b != b) {
+			set(out, Float.NaN, Float.NaN);
+			return;
+		}
+		switch (op) {
+			case ExpressionProgram.OP_FLOOR:
+				set(out, (float) Math.floor(a), (float) Math.floor(b));
+				break;
+			case ExpressionProgram.OP_CEIL:
+				set(out, (float) Math.ceil(a), (float) Math.ceil(b));
+				break;
+			case ExpressionProgram.OP_ABS:
+				if (a >= 0)
+					set(out, a, b);
+				else if (b <= 0)
+					set(out, -b, -a);
+				else
+					set(out, 0, Math.max(-a, b));
+				break;
+			default:
+				set(out, 0, 0);
+				break;
+		}
+	}
+
+	// Pick between the intervals [a, b] and [c, d] with a condition in [condMin, condMax]. If the condition
+	// could be 0 or not, the result could come from either.
+	static void select(float condMin, float condMax, float a, float b, float c, float d, float[] out) {
+		if (condMin == 0 && condMax == 0)
+			set(out, c, d);
+		else if (condMin > 0 || condMax < 0 || condMin != condMin || condMax != condMax)
+			set(out, a, b);
+		else if (a != a || b != b || c != c || d != d)
+			set(out, Float.NaN, Float.NaN);
+		else
+			set(out, Math.min(a, c), Math.max(b, d));
+	}
+
+	// Division is monotonic in each operand as long as the divisor doesn't cross 0.
+	private static void divide(float a, float b, float c, float d, float[] out) {
+		if (c == d)
+			hull(out, a / c, b / c, a / c, b / c);
+		else if (c > 0 || d < 0)
+			hull(out, a / c, a / d, b / c, b / d);
+		else
+			set(out, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+	}
+
+	// Raise an interval to a power. Math.pow is only defined for negative bases when the exponent is an integer.
+	private static void power(float a, float b, float c, float d, float[] out) {
+		float pa = (float) Math.pow(a, c);
+		float pb = (float) Math.pow(b, c);
+		if (c == d && c == Math.rint(c) && !Float.isInfinite(c)) {
+			integerPower(a, b, c, pa, pb, out);
+			return;
+		}
+		if (a < 0) {
+			set(out, Float.NaN, Float.NaN);
+			return;
+		}
+		// For positive bases, x^y is e^(y ln x), and y ln x has its extremes at the corners.
+		hull(out, pa, pb, (float) Math.pow(a, d), (float) Math.pow(b, d));
+	}
+
+	// Raise an interval to an integer power n, given a^n and b^n.
+	private static void integerPower(float a, float b, float n, float pa, float pb, float[] out) {
+		boolean even = n % 2 == 0;
+		if (n == 0) {
+			set(out, 1, 1);
+		}
+		else if (n > 0) {
+			// Odd powers are increasing. Even powers decrease to 0 and then increase.
+			if (!even || a >= 0)
+				set(out, pa, pb);
+			else if (b <= 0)
+				set(out, pb, pa);
+			else
+				set(out, 0, Math.max(pa, pb));
+		}
+		else if (a > 0 || b < 0) {
+			// Negative powers are monotonic on either side of 0.
+			hull(out, pa, pb, pa, pb);
+		}
+		else if (even) {
+			// Even negative powers go to infinity at 0 from both sides.
+			set(out, Math.min(pa, pb), Float.POSITIVE_INFINITY);
+		}
+		else if (a == 0) {
+			set(out, pb, Float.POSITIVE_INFINITY);
+		}
+		else if (b == 0) {
+			set(out, Float.NEGATIVE_INFINITY, pa);
+		}
+		else {
+			set(out, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+		}
+	}
+
+	// Take a root of an interval. This is a power of 1 / the root, which is computed in double like the program does.
+	private static void root(float a, float b, float c, float d, float[] out) {
+		if (c == d) {
+			double e = 1.0 / c;
+			float pa = (float) Math.pow(a, e);
+			float pb = (float) Math.pow(b, e);
+			if (e == Math.rint(e) && !Double.isInfinite(e)) {
+				integerPower(a, b, (float)e, pa, pb, out);
+				return;
+			}
+			if (a < 0)
+				set(out, Float.NaN, Float.NaN);
+			else
+				hull(out, pa, pb, pa, pb);
+			return;
+		}
+		if (a < 0) {
+			set(out, Float.NaN, Float.NaN);
+			return;
+		}
+		if (c > 0 || d < 0) {
+			double e1 = 1.0 / c, e2 = 1.0 / d;
+			hull(out, (float) Math.pow(a, e1), (float) Math.pow(a, e2), (float) Math.pow(b, e1), (float) Math.pow(b, e2));
+		}
+		else {
+			// The exponent is unbounded, so anything from 0 to infinity is possible.
+			set(out, 0, Float.POSITIVE_INFINITY);
+		}
+	}
+
+	// The remainder has the sign of the dividend, and its magnitude is less than both the dividend's and the divisor's.
+	private static void modulus(float a, float b, float c, float d, float[] out) {
+		if (c <= 0 && d >= 0) {
+			// The divisor can be 0.
+			set(out, Float.NaN, Float.NaN);
+			return;
+		}
+		if (c == d) {
+			// Within one multiple of the divisor, the remainder increases with the dividend.
+			float m = Math.abs(c);
+			if ((a >= 0 && Math.floor(a / m) == Math.floor(b / m))
+					|| (b <= 0 && Math.ceil(a / m) == Math.ceil(b / m))) {
+				set(out, a % c, b % c);
+				return;
+			}
+		}
+		float m = Math.max(Math.abs(c), Math.abs(d));
+		if (a >= 0)
+			set(out, 0, Math.min(b, m));
+		else if (b <= 0)
+			set(out, Math.max(a, -m), 0);
+		else
+			set(out, Math.max(a, -m), Math.min(b, m));
+	}
+
+}
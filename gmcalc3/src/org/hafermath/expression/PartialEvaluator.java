@@ -0,0 +1,69 @@
+// Partially evaluates expressions against variables whose values are known ahead of time. The known variables
+// are replaced with their values and the result is simplified, which leaves a smaller residual expression, or a
+// constant expression if every variable was known. Results are remembered, so specializing an expression that is
+// shared by many stats only does the work once. A partial evaluator can be shared between threads.
+
+package org.hafermath.expression;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.hafermath.expression.Expression.*;
+
+public final class PartialEvaluator {
+
+	private final HashMap<String, Float> knownValues;						// The value of each known variable.
+	private final ConcurrentHashMap<Expression, Expression> specialized;	// The result for each expression so far.
+
+	// Constructor. The values are copied, so later changes to the map don't affect the evaluator.
+	public PartialEvaluator(Map<String, Float> knownValues) {
+		this.knownValues = new HashMap<String, Float>(knownValues);
+		specialized = new ConcurrentHashMap<Expression, Expression>();
+	}
+
+	// Check if the value of a variable is known.
+	public boolean isKnown(String variableName) {
+		return knownValues.containsKey(variableName);
+	}
+
+	// Get the value of a known variable, or null if it isn't known.
+	public Float getKnownValue(String variableName) {
+		return knownValues.get(variableName);
+	}
+
+	// Get the expression that is left after replacing the known variables of an expression with their values.
+	// If the expression doesn't reference any known variables, the expression itself is returned.
+	public Expression specialize(Expression expression) {
+		if (!(expression instanceof VariableExpression))
+			return expression;
+		Expression out = specialized.get(expression);
+		if (out == null) {
+			out = substitute((VariableExpression)expression);
+			Expression existing = specialized.putIfAbsent(expression, out);
+			if (existing != null)
+				out = existing;
+		}
+		return out;
+	}
+
+	// Replace the known variables of an expression with numbers and simplify what is left.
+	private Expression substitute(VariableExpression expression) {
+		Token[] tokens = expression.getTokens();
+		Token[] out = null;
+		for (int i = 0; i < tokens.length; i++) {
+			if (!(tokens[i] instanceof VariableToken))
+				continue;
+			Float value = knownValues.get(((VariableToken)tokens[i]).getVariableName());
+			if (value == null)
+				continue;
+			if (out == null)
+				out = tokens.clone();
+			out[i] = new NumberToken(value);
+		}
+		if (out == null)
+			return expression;
+		return ExpressionSimplifier.makeSimplifiedExpression(out);
+	}
+
+}
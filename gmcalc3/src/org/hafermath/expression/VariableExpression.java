@@ -1,111 +1,259 @@
 // A mathematical expression with variables in it, which means it must be evaluated later.
+// Variable expressions are immutable. Adding two expressions makes a small node that points at both,
+// and the node is only flattened and compiled the first time it is evaluated. Multiplying an expression
+// by a constant makes a node the same way.
 
 package org.hafermath.expression;
 
 import java.util.ArrayDeque;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Map;
 
 public class VariableExpression implements Expression {
 
-	private final Token[] tokens; // An array of the tokens in the expression.
-	private final VariableToken[] varTokens; // The variable tokens.
-	private ArrayDeque<Float> evaluateStack; // The stack the expression does work with.
-	private float lastResult; // The last result of this expression.
-	
-	// Constructor.
-	public VariableExpression(Token[] tokens) {
-		this.tokens = tokens; // Set the tokens.
+	// The tokens of an expression and everything derived from them.
+	private static final class Compiled {
+		private final Token[] tokens; // An array of the tokens in the expression.
+		private final VariableToken[] varTokens; // The variable tokens.
+		private final ExpressionProgram program; // The compiled form of the tokens.
+		private volatile ExpressionTree tree; // The tree form of the program, once the expression is hot.
+		private int numEvaluations; // How many times the program has run. Races only delay promotion.
 		
-		// Count the number of variables.
-		int numVars = 0;
-		for (int i = 0; i < tokens.length; i++) {
-			if (tokens[i] instanceof VariableToken)
-				numVars++;
-		}
+		private Compiled(Token[] tokens) {
+			this.tokens = tokens;
+			program = new ExpressionProgram(tokens);
+			
+			// Count the number of variables.
+			int numVars = 0;
+			for (int i = 0; i < tokens.length; i++) {
+				if (tokens[i] instanceof VariableToken)
+					numVars++;
+			}
 
-		// Initialize varTokens and put the variables in it.
-		varTokens = new VariableToken[numVars];
-		for (int q = 0, i = 0; i < tokens.length; i++) {
-			if (tokens[i] instanceof VariableToken)
-				varTokens[q++] = (VariableToken) tokens[i];
+			// Initialize varTokens and put the variables in it.
+			varTokens = new VariableToken[numVars];
+			for (int q = 0, i = 0; i < tokens.length; i++) {
+				if (tokens[i] instanceof VariableToken)
+					varTokens[q++] = (VariableToken) tokens[i];
+			}
 		}
-
-		evaluateStack = new ArrayDeque<Float>(); // Make the stack to evaluate with.
 	}
 	
-	// Evaluate the expression.
-	public void evaluate(Map<String, Expression> varMap) {
-		// Clear the stack.
-		evaluateStack.clear();
-
-		// Loop through the tokens in the expression.
-		for (int i = 0; i < tokens.length; i++) {
-			// If the token is an operator, pop two values off the stack,
-			// operate on them, and push the result onto the stack.
-			if (tokens[i] instanceof OperatorToken) {
-				OperatorToken op = (OperatorToken)tokens[i];
-				float value1 = evaluateStack.pop();
-				float value2 = evaluateStack.pop();
-				float value3 = op.operate(value2, value1);
-				evaluateStack.push(value3);
+	// The number of times an expression is evaluated with its program before it is compiled into a tree.
+	public static final int TREE_THRESHOLD = 256;
+	
+	private final Expression left, right; // If this is a sum, the expressions it adds. Otherwise null.
+	private final float factor; // If this is a product, left is multiplied by this and right is null.
+	private volatile Compiled compiled; // Sums are compiled the first time they are needed.
+	
+	// Constructors.
+	public VariableExpression(Token[] tokens) {
+		left = null;
+		right = null;
+		factor = 1;
+		compiled = new Compiled(tokens);
+	}
+	
+	private VariableExpression(Expression left, Expression right) {
+		this.left = left;
+		this.right = right;
+		factor = 1;
+	}
+	
+	private VariableExpression(VariableExpression operand, float factor) {
+		left = operand;
+		right = null;
+		this.factor = factor;
+	}
+	
+	// Get the compiled form of this expression, flattening and simplifying it if this is a sum.
+	// Compiling is deterministic, so if two threads race to do it they get equivalent results.
+	private Compiled getCompiled() {
+		Compiled c = compiled;
+		if (c == null) {
+			c = new Compiled(ExpressionSimplifier.simplify(flattenSum()));
+			compiled = c;
+		}
+		return c;
+	}
+	
+	// Gather the operands of this sum and of any sums under it that haven't been compiled yet,
+	// and add them together with one n-ary sum. A product is one operand, and compiles its operand
+	// on its own so that the operand's compiled form can be shared with everything else that uses it.
+	private Token[] flattenSum() {
+		ArrayList<Token> out = new ArrayList<Token>();
+		int numOperands = 0;
+		ArrayDeque<Expression> toVisit = new ArrayDeque<Expression>();
+		toVisit.push(this);
+		while (!toVisit.isEmpty()) {
+			Expression e = toVisit.pop();
+			if (e instanceof ConstantExpression) {
+				out.add(new NumberToken(((ConstantExpression)e).getValue()));
+				numOperands++;
+				continue;
+			}
+			VariableExpression v = (VariableExpression)e;
+			Compiled c = v.compiled;
+			if (c != null) {
+				for (Token t : c.tokens)
+					out.add(t);
+				numOperands++;
 			}
-			// If the token is a number or a variable, get its value and push it onto the stack.
-			else if (tokens[i] instanceof NumberToken) {
-				float value = ((NumberToken)tokens[i]).getNumber();
-				evaluateStack.push(value);
+			else if (v.right == null) {
+				for (Token t : ((VariableExpression)v.left).getTokens())
+					out.add(t);
+				out.add(new NumberToken(v.factor));
+				out.add(new OperatorToken((byte)ExpressionProgram.OP_MULTIPLY));
+				numOperands++;
 			}
-			else if (tokens[i] instanceof VariableToken) {
-				String varName = ((VariableToken)tokens[i]).getVariableName();
-				Expression e = varMap.get(varName);
-				if (e != null)
-					evaluateStack.push(new Float(e.getValue()));
-				else
-					evaluateStack.push(new Float(0));
+			else {
+				// Visit the left operand first so that the order of the terms is kept.
+				toVisit.push(v.right);
+				toVisit.push(v.left);
 			}
 		}
-
-		// The last thing in the stack should be the result.
-		lastResult = evaluateStack.pop();
+		if (numOperands > 1)
+			out.add(new SumToken(numOperands));
+		return out.toArray(new Token[out.size()]);
+	}
+	
+	// Get the compiled program of this expression.
+	public ExpressionProgram getProgram() {
+		return getCompiled().program;
+	}
+	
+	// Get the tree form of this expression, building it now if it hasn't been built yet.
+	public ExpressionTree getTree() {
+		Compiled c = getCompiled();
+		ExpressionTree tree = c.tree;
+		if (tree == null) {
+			tree = new ExpressionTree(c.program);
+			c.tree = tree;
+		}
+		return tree;
+	}
+	
+	// Run the compiled form of this expression. Expressions start out running their program, and are
+	// compiled into a tree once they have been evaluated TREE_THRESHOLD times. Both give the same results.
+	private static float run(Compiled c, float[] stack, float[] values, int[] slots) {
+		ExpressionTree tree = c.tree;
+		if (tree != null)
+			return tree.evaluate(values, slots);
+		if (++c.numEvaluations >= TREE_THRESHOLD)
+			c.tree = new ExpressionTree(c.program);
+		return c.program.run(stack, values, slots);
+	}
+	
+	// Get the tokens of this expression.
+	public Token[] getTokens() {
+		return getCompiled().tokens;
+	}
+	
+	// Evaluate the expression with the values of its variables in a map. Variables that aren't in the map are 0.
+	public float evaluate(Map<String, Float> varMap) {
+		// Look up each distinct variable once.
+		Compiled c = getCompiled();
+		ExpressionProgram program = c.program;
+		String[] varNames = program.getVariables();
+		float[] varValues = new float[varNames.length];
+		int[] varSlots = new int[varNames.length];
+		for (int i = 0; i < varNames.length; i++) {
+			Float value = varMap.get(varNames[i]);
+			varValues[i] = (value != null)? value : 0;
+			varSlots[i] = i;
+		}
+		
+		// Run the compiled program.
+		float[] stack = (c.tree == null)? new float[program.getStackDepth()] : null;
+		return run(c, stack, varValues, varSlots);
+	}
+	
+	// Resolve the variables of this expression to slots in a values array. The returned slots can be
+	// passed to evaluate(EvaluationContext, int[]) for as long as slotIndex stays the same. Variables
+	// that aren't in slotIndex are resolved to missingSlot.
+	public int[] bind(Map<String, Integer> slotIndex, int missingSlot) {
+		String[] varNames = getProgram().getVariables();
+		int[] slots = new int[varNames.length];
+		for (int i = 0; i < varNames.length; i++) {
+			Integer slot = slotIndex.get(varNames[i]);
+			slots[i] = (slot != null)? slot : missingSlot;
+		}
+		return slots;
+	}
+	
+	// Evaluate the expression, reading variables from the context's values at the slots returned by bind().
+	public float evaluate(EvaluationContext context, int[] slots) {
+		Compiled c = getCompiled();
+		return run(c, context.getStack(c.program.getStackDepth()), context.getValues(), slots);
 	}
 
+	// Evaluate the expression for many bindings at once. Each column holds the values of one slot, one per binding:
+	// the variable bound to slot s has the value columns[s][r] in binding r. The result for binding r is written
+	// to results[r]. This is much faster than evaluating each binding on its own when there are many of them.
+	public void evaluateBatch(EvaluationContext context, float[][] columns, int[] slots, float[] results, int count) {
+		getProgram().runBatch(context, columns, slots, results, count);
+	}
+	
+	// Find the interval of values the expression can have when each variable can have any value in an interval.
+	// Variables in slot s are in [mins[s], maxs[s]]. The minimum is written to out[0] and the maximum to out[1].
+	public void evaluateInterval(EvaluationContext context, float[] mins, float[] maxs, int[] slots, float[] out) {
+		ExpressionProgram program = getProgram();
+		program.runInterval(context.getStack(program.getStackDepth() * 2), mins, maxs, slots, out);
+	}
+	
+	// Find the interval of values the expression can have with the intervals of its variables in a map. Each
+	// interval is an array of its minimum and maximum. Variables that aren't in the map are 0. Returns the
+	// minimum and maximum of the expression.
+	public float[] evaluateInterval(Map<String, float[]> intervalMap) {
+		ExpressionProgram program = getProgram();
+		String[] varNames = program.getVariables();
+		float[] mins = new float[varNames.length];
+		float[] maxs = new float[varNames.length];
+		int[] varSlots = new int[varNames.length];
+		for (int i = 0; i < varNames.length; i++) {
+			float[] interval = intervalMap.get(varNames[i]);
+			if (interval != null) {
+				mins[i] = interval[0];
+				maxs[i] = interval[1];
+			}
+			varSlots[i] = i;
+		}
+		
+		float[] out = new float[2];
+		program.runInterval(new float[program.getStackDepth() * 2], mins, maxs, varSlots, out);
+		return out;
+	}
+	
 	// Get the variables this expression references.
 	public VariableToken[] getVariables() {
-		return varTokens;
+		return getCompiled().varTokens;
 	}
 	
 	@Override
-	public float getValue() {
-		return lastResult;
+	public Expression copy() {
+		// Expressions are immutable, so there is no need to copy anything.
+		return this;
 	}
 	
 	@Override
-	public Expression copy() {
-		return new VariableExpression(Arrays.copyOf(tokens, tokens.length));
+	public Expression addWith(Expression other) {
+		// Just point at both operands. The sum is flattened and simplified when it is compiled.
+		return new VariableExpression(this, other);
 	}
 	
 	@Override
-	public Expression addWith(Expression other) {
-		// Since the tokens are in RPN, we can just append the other's tokens to the end of
-		// this and put a plus sign at the end.
-		Token[] otherTokens;
-		if (other instanceof ConstantExpression)
-			otherTokens = new Token[] { new NumberToken(((ConstantExpression)other).getValue()) };
-		else
-			otherTokens = ((VariableExpression)other).tokens;
-		
-		Token[] outTokens = Arrays.copyOf(tokens, tokens.length + otherTokens.length + 1);
-		for (int i = 0; i < otherTokens.length; i++)
-			outTokens[tokens.length + i] = otherTokens[i];
-		outTokens[outTokens.length - 1] = new OperatorToken((byte)0);
-		
-		return new VariableExpression(outTokens);
+	public Expression multiplyBy(float factor) {
+		if (factor == 1)
+			return this;
+		if (factor == 0)
+			return new ConstantExpression(0);
+		return new VariableExpression(this, factor);
 	}
 	
 	@Override
 	public String toString() {
 		StringBuilder out = new StringBuilder();
-		for (Token t : tokens) {
+		for (Token t : getTokens()) {
 			out.append(t.toString());
 			out.append(' ');
 		}